@@ -0,0 +1,251 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 注销账号后的后台清理
+ * deleteAccount 只做软删除并在同一事务里写入 account_cleanup_jobs，
+ * 这里定时领取任务，分别走 follower_id / followee_id 索引按批删除关注边并修正对端计数，再分批删除该用户的点赞。
+ * 任务表持久化 + 租约 (locked_until)，重启或多节点下未完成的任务会被重新领取；每一批都是幂等的单语句。
+ * 只处理用户仍为 is_deleted 的任务；失败的任务释放租约，本轮跳过它继续处理其余任务，下一轮重试。
+ */
+@Component
+@Slf4j
+public class AccountCleanupWorker {
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Autowired
+    private FollowRatioLeaderboard leaderboard;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Value("${sustc.account-cleanup.batch-size:1000}")
+    private int batchSize = 1000;
+
+    @Value("${sustc.account-cleanup.lease-seconds:300}")
+    private int leaseSeconds = 300;
+
+    // 每一批删除都再确认一次用户仍是注销状态，清理途中被重新导入时停止
+    private static final String STILL_DELETED = "EXISTS (SELECT 1 FROM users WHERE id = ? AND is_deleted)";
+
+    private final AtomicLong jobsCompleted = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong edgesDeleted = new AtomicLong();
+    private final AtomicLong likesDeleted = new AtomicLong();
+
+    /**
+     * 在调用方的事务里登记清理任务，与软删除一起提交
+     */
+    public void enqueue(Connection conn, long userId) throws SQLException {
+        String sql = "INSERT INTO account_cleanup_jobs (user_id, enqueued_at) VALUES (?, NOW()) " +
+                "ON CONFLICT (user_id) DO UPDATE SET finished_at = NULL, locked_until = NULL";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            stmt.executeUpdate();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${sustc.account-cleanup.poll-interval-ms:1000}")
+    public void drain() {
+        skipStaleJobs();
+        // 本轮失败过的任务不再领取，其余任务照常继续，下一轮再重试
+        List<Long> failed = new ArrayList<>();
+        Long userId;
+        while ((userId = claimNext(failed)) != null) {
+            try {
+                cleanup(userId);
+                finish(userId, null);
+                jobsCompleted.incrementAndGet();
+            } catch (Exception e) {
+                jobsFailed.incrementAndGet();
+                log.error("Account cleanup failed for user {}", userId, e);
+                finish(userId, e.toString());
+                failed.add(userId);
+            }
+        }
+    }
+
+    /**
+     * 清理进度，供监控/排查使用
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("JobsCompleted", jobsCompleted.get());
+        stats.put("JobsFailed", jobsFailed.get());
+        stats.put("EdgesDeleted", edgesDeleted.get());
+        stats.put("LikesDeleted", likesDeleted.get());
+        try (Connection conn = connections.openPrimaryRead("accountCleanup.stats");
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT COUNT(*), MIN(enqueued_at) FROM account_cleanup_jobs WHERE finished_at IS NULL");
+             ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                stats.put("Pending", rs.getLong(1));
+                stats.put("OldestPending", rs.getTimestamp(2));
+            }
+        } catch (SQLException e) {
+            log.error("Account cleanup stats error", e);
+        }
+        return stats;
+    }
+
+    private Long claimNext(List<Long> exclude) {
+        // 只领取用户仍处于注销状态的任务：重新导入后同一 id 可能已经是新用户
+        String sql = "UPDATE account_cleanup_jobs SET locked_until = NOW() + make_interval(secs => ?), attempts = attempts + 1 " +
+                "WHERE user_id = (" +
+                "    SELECT j.user_id FROM account_cleanup_jobs j " +
+                "    WHERE j.finished_at IS NULL AND (j.locked_until IS NULL OR j.locked_until < NOW()) " +
+                "      AND j.user_id <> ALL (?) " +
+                "      AND EXISTS (SELECT 1 FROM users u WHERE u.id = j.user_id AND u.is_deleted) " +
+                "    ORDER BY j.enqueued_at LIMIT 1 FOR UPDATE SKIP LOCKED" +
+                ") RETURNING user_id";
+        try (Connection conn = connections.open("accountCleanup.claim");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, leaseSeconds);
+            stmt.setArray(2, conn.createArrayOf("bigint", exclude.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        } catch (SQLException e) {
+            log.error("Claim account cleanup job error", e);
+            return null;
+        }
+    }
+
+    // 用户已不是注销状态的待办任务直接结束，不做任何删除
+    private void skipStaleJobs() {
+        String sql = "UPDATE account_cleanup_jobs j SET finished_at = NOW(), locked_until = NULL, last_error = 'user is not deleted' " +
+                "WHERE j.finished_at IS NULL AND NOT EXISTS (SELECT 1 FROM users u WHERE u.id = j.user_id AND u.is_deleted)";
+        try (Connection conn = connections.open("accountCleanup.skipStale");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int n = stmt.executeUpdate();
+            if (n > 0) log.warn("Skipped {} account cleanup jobs whose user is no longer deleted.", n);
+        } catch (SQLException e) {
+            log.error("Skip stale account cleanup jobs error", e);
+        }
+    }
+
+    private void cleanup(long userId) throws SQLException {
+        // 该用户关注的人：走 follower_id 索引，删边并把对方 followers - 1
+        String following =
+                "WITH del AS (" +
+                        "    DELETE FROM user_follows WHERE ctid = ANY (ARRAY(" +
+                        "        SELECT ctid FROM user_follows WHERE follower_id = ? AND " + STILL_DELETED + " LIMIT ?)) " +
+                        "    RETURNING followee_id" +
+                        "), upd AS (" +
+                        "    UPDATE users SET followers = GREATEST(followers - 1, 0) " +
+                        "    WHERE id IN (SELECT followee_id FROM del) RETURNING 1" +
+                        ") SELECT followee_id, pg_current_xact_id()::text FROM del";
+        // 关注该用户的人：走 followee_id 索引，删边并把对方 following - 1
+        String followers =
+                "WITH del AS (" +
+                        "    DELETE FROM user_follows WHERE ctid = ANY (ARRAY(" +
+                        "        SELECT ctid FROM user_follows WHERE followee_id = ? AND " + STILL_DELETED + " LIMIT ?)) " +
+                        "    RETURNING follower_id" +
+                        "), upd AS (" +
+                        "    UPDATE users SET following = GREATEST(following - 1, 0) " +
+                        "    WHERE id IN (SELECT follower_id FROM del) RETURNING 1" +
+                        ") SELECT follower_id, pg_current_xact_id()::text FROM del";
+        // review_likes 按 review_id 分区，ctid 只在单个分区内唯一，这里按主键定位
+        String likes = "DELETE FROM review_likes WHERE (review_id, user_id) IN (" +
+                "SELECT review_id, user_id FROM review_likes WHERE user_id = ? AND " + STILL_DELETED + " LIMIT ?)";
+
+        try (Connection conn = connections.open("accountCleanup.cleanup")) {
+            EdgeBatch batch;
+            do {
+                batch = deleteEdgeBatch(conn, following, userId);
+                leaderboard.onUserDeleted(batch.tx, userId, batch.ids, Collections.emptyList());
+            } while (batch.ids.size() == batchSize);
+
+            do {
+                batch = deleteEdgeBatch(conn, followers, userId);
+                leaderboard.onUserDeleted(batch.tx, userId, Collections.emptyList(), batch.ids);
+            } while (batch.ids.size() == batchSize);
+
+            int n;
+            do {
+                try (PreparedStatement stmt = conn.prepareStatement(likes)) {
+                    stmt.setLong(1, userId);
+                    stmt.setLong(2, userId);
+                    stmt.setInt(3, batchSize);
+                    n = stmt.executeUpdate();
+                }
+                likesDeleted.addAndGet(n);
+            } while (n == batchSize);
+        }
+    }
+
+    // 一批删边的对端 id 和所在事务的 xid (排行榜据此丢弃 reload 已经包含的增量)
+    private static final class EdgeBatch {
+        final long tx;
+        final List<Long> ids;
+
+        EdgeBatch(long tx, List<Long> ids) {
+            this.tx = tx;
+            this.ids = ids;
+        }
+    }
+
+    // 一批删边与对应的变更事件同事务提交，调用方在提交后更新排行榜
+    private EdgeBatch deleteEdgeBatch(Connection conn, String sql, long userId) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        long tx = 0;
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            stmt.setLong(2, userId);
+            stmt.setInt(3, batchSize);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                    tx = Long.parseLong(rs.getString(2));
+                }
+            }
+            if (!ids.isEmpty()) changeFeed.publish(conn, ChangeFeed.USER_COUNTS, userId, ids);
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            connections.markFailed();
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        edgesDeleted.addAndGet(ids.size());
+        return new EdgeBatch(tx, ids);
+    }
+
+    private void finish(long userId, String error) {
+        String sql = error == null
+                ? "UPDATE account_cleanup_jobs SET finished_at = NOW(), locked_until = NULL, last_error = NULL WHERE user_id = ?"
+                : "UPDATE account_cleanup_jobs SET last_error = ?, locked_until = NULL WHERE user_id = ?";
+        try (Connection conn = connections.open("accountCleanup.finish");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            if (error == null) {
+                stmt.setLong(1, userId);
+            } else {
+                stmt.setString(1, error);
+                stmt.setLong(2, userId);
+            }
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Finish account cleanup job error", e);
+        }
+    }
+}
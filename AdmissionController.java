@@ -0,0 +1,195 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求准入控制 (sustc.admission.enabled=true 时启用)
+ * ConnectionContext 在借连接之前 acquire、作用域结束时 release，超限的请求立即抛 RejectedExecutionException，
+ * 不再排在 dataSource.getConnection() 上等到连接池超时。
+ * 全局并发上限按 gradient 方式自适应：每个操作维护自己的基线耗时 (慢速 EWMA)，
+ * 样本耗时相对基线变长说明在排队，上限按 基线/样本 的比例收缩，再加 sqrt(上限) 的余量试探增长；
+ * 并发不到上限一半时不增长，避免空闲时上限虚高。
+ * 优先级分四档，各档最多使用全局上限的一定比例：鉴权 100%、单实体读 90%、普通写 75%、搜索和分析 50%，
+ * 过载时先拒绝低优先级请求。sustc.admission.operation-limits 可再给单个操作设硬上限 (如 searchRecipes:8,feed:16)。
+ */
+@Component
+@Slf4j
+public class AdmissionController {
+
+    public enum Priority {
+        CRITICAL(1.0), HIGH(0.9), NORMAL(0.75), LOW(0.5);
+
+        final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+    }
+
+    private static final Map<String, Priority> PRIORITIES = new HashMap<>();
+
+    static {
+        for (String op : new String[]{"login", "register", "authenticate", "addReviewBatch"}) {
+            PRIORITIES.put(op, Priority.CRITICAL);
+        }
+        for (String op : new String[]{"getById", "getNameFromID", "getRecipeById", "getRecipesByIds", "getUsersByIds"}) {
+            PRIORITIES.put(op, Priority.HIGH);
+        }
+        for (String op : new String[]{"searchRecipes", "searchByIngredients", "feed", "getClosestCaloriePair",
+                "getTop3MostComplexRecipesByIngredients", "getUserWithHighestFollowRatio", "summarizeNutrition", "similarRecipes",
+                "recipesPublished", "reviewStats", "followGrowth", "reconcileFollowCounters"}) {
+            PRIORITIES.put(op, Priority.LOW);
+        }
+    }
+
+    private static final double BASELINE_WEIGHT = 0.01;
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    @Value("${sustc.admission.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sustc.admission.initial-limit:20}")
+    private int initialLimit = 20;
+
+    @Value("${sustc.admission.min-limit:4}")
+    private int minLimit = 4;
+
+    @Value("${sustc.admission.max-limit:200}")
+    private int maxLimit = 200;
+
+    @Value("${sustc.admission.operation-limits:}")
+    private String operationLimits;
+
+    private volatile double limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final Map<String, OpState> ops = new ConcurrentHashMap<>();
+    private final Map<String, Integer> hardLimits = new HashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final Map<Priority, AtomicLong> rejected = new EnumMap<>(Priority.class);
+
+    private static final class OpState {
+        final AtomicInteger inflight = new AtomicInteger();
+        final AtomicLong rejected = new AtomicLong();
+        volatile double baselineNanos = 0;
+    }
+
+    @PostConstruct
+    public void init() {
+        limit = initialLimit;
+        for (Priority p : Priority.values()) rejected.put(p, new AtomicLong());
+        if (operationLimits != null && !operationLimits.trim().isEmpty()) {
+            for (String item : operationLimits.split(",")) {
+                String[] kv = item.trim().split(":");
+                if (kv.length == 2) hardLimits.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            }
+        }
+        if (enabled) log.info("Admission control enabled, initial limit {}, operation limits {}.", initialLimit, hardLimits);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Priority priorityOf(String operation) {
+        return PRIORITIES.getOrDefault(operation, Priority.NORMAL);
+    }
+
+    /**
+     * 申请一个并发名额，超限时立即拒绝；成功后必须调用 release
+     */
+    public void acquire(String operation) {
+        if (!enabled) return;
+        Priority priority = priorityOf(operation);
+        OpState op = ops.computeIfAbsent(operation, k -> new OpState());
+
+        Integer hard = hardLimits.get(operation);
+        if (hard != null && op.inflight.incrementAndGet() > hard) {
+            op.inflight.decrementAndGet();
+            reject(operation, priority, op, "operation limit " + hard);
+        }
+
+        int cap = Math.max(1, (int) Math.ceil(limit * priority.share));
+        while (true) {
+            int cur = inflight.get();
+            if (cur >= cap) {
+                if (hard != null) op.inflight.decrementAndGet();
+                reject(operation, priority, op, "in flight " + cur + " / " + cap);
+            }
+            if (inflight.compareAndSet(cur, cur + 1)) break;
+        }
+        if (hard == null) op.inflight.incrementAndGet();
+        admitted.incrementAndGet();
+    }
+
+    /**
+     * 归还名额并用这次的耗时调整上限；失败的请求不参与调整
+     */
+    public void release(String operation, long elapsedNanos, boolean failed) {
+        if (!enabled) return;
+        OpState op = ops.get(operation);
+        if (op != null) op.inflight.decrementAndGet();
+        int concurrent = inflight.getAndDecrement();
+        if (op == null || failed || elapsedNanos <= 0) return;
+        update(op, elapsedNanos, concurrent);
+    }
+
+    private synchronized void update(OpState op, long sample, int concurrent) {
+        if (op.baselineNanos == 0) {
+            op.baselineNanos = sample;
+            return;
+        }
+        double baseline = op.baselineNanos;
+        // 基线只缓慢跟随，持续变慢时也能逐步抬高
+        op.baselineNanos = baseline * (1 - BASELINE_WEIGHT) + sample * BASELINE_WEIGHT;
+
+        double current = limit;
+        // 并发远低于上限时，耗时说明不了上限够不够，不调整
+        if (concurrent < current / 2) return;
+
+        double gradient = Math.max(0.5, Math.min(1.0, baseline / sample));
+        double target = current * gradient + Math.sqrt(current);
+        double next = current * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    private void reject(String operation, Priority priority, OpState op, String reason) {
+        op.rejected.incrementAndGet();
+        rejected.get(priority).incrementAndGet();
+        throw new RejectedExecutionException("Overloaded: " + operation + " (" + priority + ") rejected, " + reason);
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("Limit", limit);
+        m.put("InFlight", inflight.get());
+        m.put("Admitted", admitted.get());
+        Map<String, Long> byPriority = new HashMap<>();
+        rejected.forEach((p, n) -> byPriority.put(p.name(), n.get()));
+        m.put("RejectedByPriority", byPriority);
+        Map<String, Map<String, Object>> byOp = new HashMap<>();
+        ops.forEach((name, op) -> {
+            Map<String, Object> o = new HashMap<>();
+            o.put("InFlight", op.inflight.get());
+            o.put("Rejected", op.rejected.get());
+            o.put("BaselineMillis", op.baselineNanos / 1_000_000.0);
+            byOp.put(name, o);
+        });
+        m.put("Operations", byOp);
+        return m;
+    }
+}
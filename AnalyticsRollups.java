@@ -0,0 +1,163 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按天汇总的分析表 (rollup_*)
+ * 写路径在自己的事务里调用 onRecipe / onReview 做增量 upsert (follow 的汇总直接写在 follow 语句的 CTE 里)，
+ * 导入时由 DatabaseServiceImpl 按导入数据整体写入。看板查询只读汇总表，按月统计时在日汇总上再 date_trunc 聚合。
+ */
+@Component
+@Slf4j
+public class AnalyticsRollups {
+
+    @Autowired
+    private ConnectionContext connections;
+
+    /**
+     * 食谱发布数 +delta：新建后传 +1，删除前传 -1 (按食谱自身的发布日期和分类定位汇总行)
+     */
+    public void onRecipe(Connection conn, long recipeId, int delta) throws SQLException {
+        String sql = "INSERT INTO rollup_recipes_daily (day, category_id, recipes) " +
+                "SELECT create_time::date, COALESCE(category_id, 0), ? FROM recipes WHERE id = ? " +
+                "ON CONFLICT (day, category_id) DO UPDATE SET recipes = rollup_recipes_daily.recipes + EXCLUDED.recipes";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, delta);
+            stmt.setLong(2, recipeId);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * 评论数和评分和 +sign：新增后传 +1，删除前传 -1，修改评分时改前 -1、改后 +1
+     * 带上分区键 recipe_id，只访问一个分区
+     */
+    public void onReview(Connection conn, long recipeId, long reviewId, int sign) throws SQLException {
+        String sql = "INSERT INTO rollup_reviews_daily (recipe_id, day, reviews, rating_sum) " +
+                "SELECT recipe_id, create_time::date, ?, ? * rating FROM reviews WHERE id = ? AND recipe_id = ? " +
+                "ON CONFLICT (recipe_id, day) DO UPDATE SET " +
+                "reviews = rollup_reviews_daily.reviews + EXCLUDED.reviews, " +
+                "rating_sum = rollup_reviews_daily.rating_sum + EXCLUDED.rating_sum";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, sign);
+            stmt.setInt(2, sign);
+            stmt.setLong(3, reviewId);
+            stmt.setLong(4, recipeId);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * 批量新增的评论按 (食谱, 日期) 聚合后一次 upsert
+     */
+    public void onReviews(Connection conn, Long[] reviewIds) throws SQLException {
+        String sql = "INSERT INTO rollup_reviews_daily (recipe_id, day, reviews, rating_sum) " +
+                "SELECT recipe_id, create_time::date, COUNT(*), SUM(rating) FROM reviews WHERE id = ANY (?) " +
+                "GROUP BY recipe_id, create_time::date " +
+                "ON CONFLICT (recipe_id, day) DO UPDATE SET " +
+                "reviews = rollup_reviews_daily.reviews + EXCLUDED.reviews, " +
+                "rating_sum = rollup_reviews_daily.rating_sum + EXCLUDED.rating_sum";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("bigint", reviewIds));
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * 删除食谱时其评论一并删除，对应的评论汇总也整体删掉
+     */
+    public void onRecipeReviewsDeleted(Connection conn, long recipeId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM rollup_reviews_daily WHERE recipe_id = ?")) {
+            stmt.setLong(1, recipeId);
+            stmt.executeUpdate();
+        }
+    }
+
+    // --- 看板查询 ---
+
+    /**
+     * 各分类在 [from, to] 内的发布数，granularity 为 day 或 month
+     */
+    public List<Map<String, Object>> recipesPublished(LocalDate from, LocalDate to, String granularity) {
+        String sql = "SELECT date_trunc('" + unit(granularity) + "', r.day)::date AS bucket, c.name AS category, SUM(r.recipes) AS recipes " +
+                "FROM rollup_recipes_daily r LEFT JOIN categories c ON r.category_id = c.id " +
+                "WHERE r.day BETWEEN ? AND ? " +
+                "GROUP BY bucket, c.name HAVING SUM(r.recipes) > 0 ORDER BY bucket, recipes DESC";
+        return query("recipesPublished", sql, from, to, null, (rs, row) -> {
+            row.put("Category", rs.getString("category"));
+            row.put("Recipes", rs.getLong("recipes"));
+        });
+    }
+
+    /**
+     * 某食谱在 [from, to] 内的评论数和平均分
+     */
+    public List<Map<String, Object>> reviewStats(long recipeId, LocalDate from, LocalDate to, String granularity) {
+        String sql = "SELECT date_trunc('" + unit(granularity) + "', day)::date AS bucket, SUM(reviews) AS reviews, SUM(rating_sum) AS rating_sum " +
+                "FROM rollup_reviews_daily WHERE day BETWEEN ? AND ? AND recipe_id = ? " +
+                "GROUP BY bucket HAVING SUM(reviews) > 0 ORDER BY bucket";
+        return query("reviewStats", sql, from, to, recipeId, (rs, row) -> {
+            long reviews = rs.getLong("reviews");
+            row.put("Reviews", reviews);
+            row.put("AverageRating", Math.round(rs.getDouble("rating_sum") / reviews * 100.0) / 100.0);
+        });
+    }
+
+    /**
+     * 某用户在 [from, to] 内新增 / 失去的关注者数
+     */
+    public List<Map<String, Object>> followGrowth(long userId, LocalDate from, LocalDate to, String granularity) {
+        String sql = "SELECT date_trunc('" + unit(granularity) + "', day)::date AS bucket, SUM(gained) AS gained, SUM(lost) AS lost " +
+                "FROM rollup_follows_daily WHERE day BETWEEN ? AND ? AND user_id = ? " +
+                "GROUP BY bucket ORDER BY bucket";
+        return query("followGrowth", sql, from, to, userId, (rs, row) -> {
+            row.put("Gained", rs.getLong("gained"));
+            row.put("Lost", rs.getLong("lost"));
+        });
+    }
+
+    private interface RowReader {
+        void read(ResultSet rs, Map<String, Object> row) throws SQLException;
+    }
+
+    private List<Map<String, Object>> query(String operation, String sql, LocalDate from, LocalDate to, Long id, RowReader reader) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (Connection conn = connections.openReadOnly(operation);
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(from));
+            stmt.setDate(2, Date.valueOf(to));
+            if (id != null) stmt.setLong(3, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("Bucket", rs.getDate("bucket").toLocalDate());
+                    reader.read(rs, row);
+                    rows.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return rows;
+    }
+
+    // 只允许两种粒度，拼进 SQL 的是常量
+    private static String unit(String granularity) {
+        if (granularity == null || "day".equalsIgnoreCase(granularity)) return "day";
+        if ("month".equalsIgnoreCase(granularity)) return "month";
+        throw new IllegalArgumentException("Unsupported granularity: " + granularity);
+    }
+}
@@ -0,0 +1,76 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * service 方法 *Async 版本的执行器
+ * 每个任务一个虚拟线程 (JDK 21+；更低版本退化为 cached 线程池)，并发访问数据库的任务数由信号量限制在连接池大小，
+ * 这样网关可以挂起大量请求而不需要同等数量的平台线程，也不会让排队的请求把连接池等待时间拖到超时。
+ * 信号量在任务线程内获取：等待许可的只是廉价的虚拟线程，不占用调用方线程。
+ */
+@Component
+@Slf4j
+public class AsyncServiceExecutor {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    public AsyncServiceExecutor(@Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize) {
+        this.executor = newVirtualThreadExecutor();
+        this.permits = new Semaphore(Math.max(poolSize, 1), true);
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return task.get();
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * 当前排队等待连接许可的任务数（近似值）
+     */
+    public int getQueueLength() {
+        return permits.getQueueLength();
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) executor.shutdownNow();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // 编译目标仍兼容 JDK 17，虚拟线程通过反射获取
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads unavailable on this JDK, falling back to cached thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
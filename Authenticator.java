@@ -0,0 +1,165 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 各 service 共用的鉴权
+ * AuthInfo.password 是有效的会话令牌 (SessionTokens) 时只验签，不查库也不借连接；需要拦住已注销用户的调用方
+ * 在自己的作用域里用 checkActive 复用同一条连接判断 (吊销记录只在签发节点的内存里，其他节点和重启后靠这次主键查询)。
+ * 否则查出存储的密码哈希，用 PasswordHasher 校验。校验通过后记下 (用户, 存储值, 密码) 的 HMAC 指纹，
+ * 有效期内同一用户带同一密码的后续请求只比对指纹，不再做慢哈希；存储值变化 (改密码 / 升级哈希) 后指纹自然失配。
+ * 慢哈希期间不占用连接：存储值在单独的 authenticate 作用域里读出，service 在鉴权通过后才打开自己的连接。
+ */
+@Component
+@Slf4j
+public class Authenticator {
+
+    @Autowired
+    private PasswordHasher hasher;
+
+    @Autowired
+    private SessionTokens tokens;
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Value("${sustc.password.verified-ttl-seconds:300}")
+    private long verifiedTtlSeconds = 300;
+
+    @Value("${sustc.password.verified-cache-size:100000}")
+    private int verifiedCacheSize = 100000;
+
+    private SecretKeySpec pepper;
+    private final Map<Long, Verified> verified = new ConcurrentHashMap<>();
+
+    private final AtomicLong tokenHits = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong slowVerifications = new AtomicLong();
+
+    private static final class Verified {
+        final byte[] fingerprint;
+        final long expiresAt;
+
+        Verified(byte[] fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        byte[] raw = new byte[32];
+        new SecureRandom().nextBytes(raw);
+        pepper = new SecretKeySpec(raw, "HmacSHA256");
+    }
+
+    /**
+     * 鉴权成功返回用户 id，失败返回 null。令牌只验签直接返回；
+     * 密码在独立的短作用域里读出存储值，requireActive 为 true 时已注销的用户鉴权失败，慢哈希在连接归还之后做，
+     * 调用方不要在持有连接时调用。令牌的注销检查见 checkActive
+     */
+    public Long verify(AuthInfo auth, boolean requireActive) {
+        if (auth == null) return null;
+        if (checkToken(auth)) return auth.getAuthorId();
+        String stored;
+        try (Connection conn = connections.open("authenticate");
+             PreparedStatement stmt = conn.prepareStatement("SELECT password, is_deleted FROM users WHERE id = ?")) {
+            stmt.setLong(1, auth.getAuthorId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                if (requireActive && rs.getBoolean("is_deleted")) return null;
+                stored = rs.getString("password");
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return checkPassword(auth.getAuthorId(), auth.getPassword(), stored) ? auth.getAuthorId() : null;
+    }
+
+    /**
+     * 令牌鉴权的用户已注销时抛 SecurityException，在调用方的作用域里复用它的连接；
+     * 密码鉴权时 verify 已经在读存储值的同一查询里检查过，这里什么都不做
+     */
+    public void checkActive(Connection conn, AuthInfo auth, long userId) throws SQLException {
+        if (auth == null || auth.getPassword() == null || !auth.getPassword().startsWith(SessionTokens.PREFIX)) return;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT is_deleted FROM users WHERE id = ?")) {
+            stmt.setLong(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next() || rs.getBoolean(1)) throw new SecurityException("Auth failed or user is inactive");
+            }
+        }
+    }
+
+    public boolean checkToken(AuthInfo auth) {
+        if (auth == null || !tokens.verify(auth.getPassword(), auth.getAuthorId())) return false;
+        tokenHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 明文密码与存储值比对，先查已验证指纹
+     */
+    public boolean checkPassword(long userId, String password, String stored) {
+        if (password == null || stored == null) return false;
+        byte[] fp = fingerprint(userId, password, stored);
+        Verified v = verified.get(userId);
+        if (v != null && v.expiresAt > System.currentTimeMillis() && MessageDigest.isEqual(v.fingerprint, fp)) {
+            cacheHits.incrementAndGet();
+            return true;
+        }
+        slowVerifications.incrementAndGet();
+        if (!hasher.verify(password, stored)) return false;
+        // 超过容量时整体清空，简单且不会无限增长
+        if (verified.size() >= verifiedCacheSize) verified.clear();
+        verified.put(userId, new Verified(fp, System.currentTimeMillis() + verifiedTtlSeconds * 1000));
+        return true;
+    }
+
+    /**
+     * 注销账号后丢弃该用户的已验证指纹并吊销令牌
+     */
+    public void forget(long userId) {
+        verified.remove(userId);
+        tokens.revoke(userId);
+    }
+
+    private byte[] fingerprint(long userId, String password, String stored) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(pepper);
+            mac.update((userId + "\0" + stored + "\0").getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("TokenHits", tokenHits.get());
+        m.put("VerifiedCacheHits", cacheHits.get());
+        m.put("SlowVerifications", slowVerifications.get());
+        m.put("VerifiedCacheSize", verified.size());
+        return m;
+    }
+}
@@ -0,0 +1,285 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 用户 id -> 用户名 的内存字典，热点读查询不再为了作者名 JOIN users
+ * 底层是 long 键的开放寻址表 (线性探测，负载因子不超过 0.5)，每个用户固定占一个 long 槽和一个引用槽，内存可预估。
+ * 导入时整体重建，首次使用时从 users 加载，register 后写入；用户名注册后不可修改，
+ * 软删除的用户仍保留名字 (已注销作者的食谱 / 评论照常显示作者名，与原来的 JOIN 一致)。
+ * 字典里没有的 id (例如其他实例刚注册的用户) 在调用方的连接上批量回查并补进字典；
+ * 回查后仍没有名字的 id 以哨兵值存进同一张表，之后不再重复回查，直到重新加载或 put 写入该用户；
+ * 未命中同样只占一个 long 槽和一个引用槽，不额外装箱，也不写进预热快照。
+ * 调用方按页收集作者 id 后调用一次 namesOf，而不是逐行 nameOf。
+ */
+@Component
+@Slf4j
+public class AuthorNameDictionary {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    // 回查过但没有名字 (用户不存在或用户名为 NULL) 的 id 的值，按引用比较
+    private static final String NO_NAME = new String("");
+
+    @Autowired
+    private ConnectionContext connections;
+
+    private final StampedLock lock = new StampedLock();
+    private long[] keys = newKeys(16);
+    private String[] values = new String[16];
+    private int size = 0;
+    private volatile boolean loaded = false;
+
+    /**
+     * 单个作者名，字典缺失时在 conn 上回查
+     */
+    public String nameOf(Connection conn, long userId) throws SQLException {
+        if (loaded) {
+            String name = raw(userId);
+            if (name != null) return name == NO_NAME ? null : name;
+        }
+        return namesOf(conn, Collections.singleton(userId)).get(userId);
+    }
+
+    /**
+     * 批量取作者名，缺失的 id 合并成一次查询
+     */
+    public Map<Long, String> namesOf(Connection conn, Collection<Long> userIds) throws SQLException {
+        ensureLoaded();
+        Map<Long, String> res = new HashMap<>();
+        Set<Long> missing = new HashSet<>();
+        for (long id : userIds) {
+            String name = raw(id);
+            if (name == null) missing.add(id);
+            else if (name != NO_NAME) res.put(id, name);
+        }
+        if (missing.isEmpty()) return res;
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, name FROM users WHERE id = ANY (?)")) {
+            stmt.setArray(1, conn.createArrayOf("bigint", missing.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getString(2) == null) continue;
+                    res.put(rs.getLong(1), rs.getString(2));
+                    put(rs.getLong(1), rs.getString(2));
+                }
+            }
+        }
+        long stamp = lock.writeLock();
+        try {
+            for (long id : missing) {
+                if (!res.containsKey(id) && id != EMPTY && lookup(keys, values, id) == null) insert(id, NO_NAME);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return res;
+    }
+
+    public String get(long userId) {
+        String name = raw(userId);
+        return name == NO_NAME ? null : name;
+    }
+
+    // 表里的原始值，NO_NAME 表示已知没有名字
+    private String raw(long userId) {
+        // 乐观读：无写入时不加锁，期间发生扩容或写入则退回读锁重读
+        long stamp = lock.tryOptimisticRead();
+        String name = lookup(keys, values, userId);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                name = lookup(keys, values, userId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return name;
+    }
+
+    public void put(long userId, String name) {
+        if (userId == EMPTY || name == null) return;
+        long stamp = lock.writeLock();
+        try {
+            insert(userId, name);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 丢弃当前内容，下次查询时从数据库重新加载 (其他节点导入数据之后)
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+
+    /**
+     * 导入时按导入数据整体重建
+     */
+    public void rebuild(List<UserRecord> users) {
+        long stamp = lock.writeLock();
+        try {
+            int n = users == null ? 0 : users.size();
+            reset(n);
+            if (users != null) {
+                for (UserRecord u : users) {
+                    if (u.getAuthorName() != null) insert(u.getAuthorId(), u.getAuthorName());
+                }
+            }
+            loaded = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        log.info("Author name dictionary rebuilt from import, {} users.", size);
+    }
+
+    /**
+     * 从 users 表重新加载
+     */
+    public void reload() {
+        List<Long> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try (Connection conn = connections.openPrimaryRead("authorNames.reload");
+             PreparedStatement stmt = conn.prepareStatement("SELECT id, name FROM users")) {
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                    names.add(rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            reset(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                if (names.get(i) != null) insert(ids.get(i), names.get(i));
+            }
+            loaded = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        log.info("Author name dictionary loaded from database, {} users.", size);
+    }
+
+    // --- 预热快照 (WarmStartSnapshot)：用户数，之后逐个 id + 用户名 ---
+
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            int named = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && values[i] != NO_NAME) named++;
+            }
+            out.writeInt(named);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == EMPTY || values[i] == NO_NAME) continue;
+                out.writeLong(keys[i]);
+                WarmStartSnapshot.writeString(out, values[i]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void restoreSnapshot(ByteBuffer in) {
+        long stamp = lock.writeLock();
+        try {
+            int n = in.getInt();
+            reset(n);
+            for (int i = 0; i < n; i++) {
+                long id = in.getLong();
+                insert(id, WarmStartSnapshot.readString(in));
+            }
+            loaded = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        log.info("Author name dictionary restored from warm-start snapshot, {} users.", size);
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload();
+            }
+        }
+    }
+
+    // --- 开放寻址表，调用方持有写锁 ---
+
+    private static long[] newKeys(int capacity) {
+        long[] k = new long[capacity];
+        Arrays.fill(k, EMPTY);
+        return k;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static String lookup(long[] k, String[] v, long key) {
+        // 乐观读时 k 和 v 可能来自扩容前后不同的表，越界或错位的结果会在 validate 时被丢弃
+        int mask = Math.min(k.length, v.length) - 1;
+        for (int i = slot(key, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long cur = k[i];
+            if (cur == key) return v[i];
+            if (cur == EMPTY) return null;
+        }
+        return null;
+    }
+
+    private void insert(long key, String value) {
+        if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+        if (keys[i] == EMPTY) size++;
+        values[i] = value;
+        keys[i] = key;
+    }
+
+    private void reset(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        keys = newKeys(capacity);
+        values = new String[capacity];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        String[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new String[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) insert(oldKeys[i], oldValues[i]);
+        }
+    }
+}
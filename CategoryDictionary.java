@@ -0,0 +1,123 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * categories 维表的 名称 <-> id 缓存
+ * 只缓存已经从数据库读到的 (即已提交的) 分类；getOrCreate 在调用方事务里 upsert，调用方提交后用 onCreated 写入缓存，
+ * 避免事务回滚后缓存里留下不存在的 id。nameOf 未命中时只查这一个 id，查不到的 id 也记下来，不再反复查库。
+ * 导入后调用 invalidate，下次查找时重新加载。
+ */
+@Component
+@Slf4j
+public class CategoryDictionary {
+
+    // 查过但不存在的 id 在 names 里的值，按引用比较
+    private static final String NO_NAME = new String("");
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    /**
+     * 分类名对应的 id，不存在时返回 null
+     */
+    public Integer lookup(Connection conn, String name) throws SQLException {
+        ensureLoaded(conn);
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        // 可能是其他实例新建的分类
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM categories WHERE name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                put(rs.getInt(1), name);
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * id 对应的分类名，不存在时返回 null
+     */
+    public String nameOf(Connection conn, int id) throws SQLException {
+        ensureLoaded(conn);
+        String name = names.get(id);
+        if (name != null) return name == NO_NAME ? null : name;
+        // 可能是其他实例新建的分类，只查这一个 id
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT name FROM categories WHERE id = ?")) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    names.putIfAbsent(id, NO_NAME);
+                    return null;
+                }
+                name = rs.getString(1);
+            }
+        }
+        put(id, name);
+        return name;
+    }
+
+    /**
+     * 取分类 id，不存在时在 conn 当前事务里插入；调用方提交后应调用 onCreated
+     */
+    public int getOrCreate(Connection conn, String name) throws SQLException {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        String sql = "INSERT INTO categories (name) VALUES (?) " +
+                "ON CONFLICT (name) DO UPDATE SET name = EXCLUDED.name RETURNING id";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * getOrCreate 所在的事务已提交，之后同名查找直接命中缓存
+     */
+    public void onCreated(int id, String name) {
+        put(id, name);
+    }
+
+    public void invalidate() {
+        loaded = false;
+    }
+
+    private void ensureLoaded(Connection conn) throws SQLException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload(conn);
+            }
+        }
+    }
+
+    private synchronized void reload(Connection conn) throws SQLException {
+        Map<String, Integer> fresh = new ConcurrentHashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, name FROM categories");
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) fresh.put(rs.getString(2), rs.getInt(1));
+        }
+        ids.clear();
+        names.clear();
+        fresh.forEach((name, id) -> put(id, name));
+        loaded = true;
+        log.debug("Category dictionary loaded, {} categories.", fresh.size());
+    }
+
+    private void put(int id, String name) {
+        ids.put(name, id);
+        names.put(id, name);
+    }
+}
@@ -0,0 +1,265 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多节点部署时的变更事件流 (outbox 表 change_events，sustc.change-feed.enabled=true 时启用)
+ * 写路径在自己的事务里 publish 一条紧凑事件 (类型 + 实体 id + 关联 id 数组)，与业务数据一起提交；
+ * 每个节点定时拉取其他节点的新事件，应用到本节点的内存结构 (倒排索引、相似食谱索引、列式快照、关注榜、各字典)：
+ * 应用时一律按 id 回库读取最新状态，重复应用是幂等的。本节点的事件跳过，提交后已经直接更新过。
+ * 事件按写入它的事务号 tx (xid8) 而不是 bigserial id 消费：id 按分配顺序而非提交顺序可见，
+ * 而 pg_snapshot_xmin(pg_current_snapshot()) 之前的事务都已结束 (提交或回滚)，tx 落在 [上次 xmin, 本次 xmin) 的事件集合不会再变。
+ * 每轮拉取这个区间、应用后把游标推进到本次 xmin，不会跳过晚提交的事件，也不需要等空洞超时；
+ * 代价是长事务会推迟其后所有事件的可见。
+ */
+@Component
+@Slf4j
+public class ChangeFeed {
+
+    public static final String RECIPE_CREATED = "recipe.created";
+    public static final String RECIPE_DELETED = "recipe.deleted";
+    public static final String RECIPE_UPDATED = "recipe.updated";
+    public static final String REVIEWS_CHANGED = "reviews.changed";
+    public static final String USER_COUNTS = "user.counts";
+    public static final String IMPORTED = "imported";
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Autowired
+    private IngredientIndex ingredientIndex;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private FollowRatioLeaderboard leaderboard;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private CategoryDictionary categoryDictionary;
+
+    @Autowired
+    private SimilarRecipeIndex similarIndex;
+
+    @Value("${sustc.change-feed.enabled:false}")
+    private boolean enabled;
+
+    // 预热快照按事件重放快照之后的变更，单节点也要写事件
+    @Value("${sustc.warm-start.enabled:false}")
+    private boolean warmStart;
+
+    @Value("${sustc.node-id:}")
+    private String configuredNodeId;
+
+    @Value("${sustc.change-feed.batch-size:1000}")
+    private int batchSize = 1000;
+
+    @Value("${sustc.change-feed.retention-hours:24}")
+    private int retentionHours = 24;
+
+    private final String randomNodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    // 游标：tx 小于它的事件都已应用，-1 表示还没有初始化
+    private long applied = -1;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 是否写事件：多节点订阅或预热快照重放需要
+     */
+    public boolean isRecording() {
+        return enabled || warmStart;
+    }
+
+    public int getRetentionHours() {
+        return retentionHours;
+    }
+
+    public String getNodeId() {
+        return configuredNodeId == null || configuredNodeId.isEmpty() ? randomNodeId : configuredNodeId;
+    }
+
+    /**
+     * 在 conn 当前事务里写入一条事件；既不订阅也不做预热快照时什么都不做
+     */
+    public void publish(Connection conn, String kind, long entityId, Collection<Long> refIds) throws SQLException {
+        if (!isRecording()) return;
+        String sql = "INSERT INTO change_events (node_id, kind, entity_id, ref_ids, created_at) VALUES (?, ?, ?, ?, NOW())";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, getNodeId());
+            stmt.setString(2, kind);
+            stmt.setLong(3, entityId);
+            if (refIds == null || refIds.isEmpty()) stmt.setNull(4, Types.ARRAY);
+            else stmt.setArray(4, conn.createArrayOf("bigint", refIds.toArray()));
+            stmt.executeUpdate();
+        }
+        published.incrementAndGet();
+    }
+
+    public void publish(Connection conn, String kind, long entityId) throws SQLException {
+        publish(conn, kind, entityId, null);
+    }
+
+    @Scheduled(fixedDelayString = "${sustc.change-feed.poll-interval-ms:200}")
+    public synchronized void poll() {
+        if (!enabled) return;
+        try (Connection conn = connections.openPrimaryRead("changeFeed.poll")) {
+            long xmin = position(conn);
+            if (applied < 0) {
+                // 从当前位置开始订阅，之前的变更在各组件首次加载时已经从数据库读到
+                applied = xmin;
+                log.info("Change feed subscribed as node {} from xmin {}.", getNodeId(), applied);
+                return;
+            }
+            if (xmin <= applied) return;
+            received.addAndGet(consume(conn, applied, xmin, true));
+            applied = xmin;
+        } catch (SQLException | RuntimeException e) {
+            // 游标不动，下一轮整段重来，已应用的事件再应用一次也是幂等的
+            log.warn("Change feed poll failed after xmin {}: {}", applied, e.toString());
+        }
+    }
+
+    /**
+     * 预热快照装回后重放 tx 不小于 from 的全部事件 (包括本节点的)，返回重放的条数；
+     * 还没订阅时订阅游标从重放终点开始，之后的 poll 接着消费
+     */
+    public synchronized int replay(Connection conn, long from) throws SQLException {
+        long to = position(conn);
+        int n = from < to ? consume(conn, from, to, false) : 0;
+        if (applied < 0) applied = to;
+        return n;
+    }
+
+    /**
+     * 当前快照的 xmin：比它小的事务都已结束
+     */
+    static long position(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_snapshot_xmin(pg_current_snapshot())::text");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return Long.parseLong(rs.getString(1));
+        }
+    }
+
+    // 按 (tx, id) 分页应用 tx 落在 [from, to) 的事件，skipOwn 时跳过本节点的事件，返回应用的条数
+    private int consume(Connection conn, long from, long to, boolean skipOwn) throws SQLException {
+        String sql = "SELECT id, tx::text AS tx, node_id, kind, entity_id, ref_ids FROM change_events " +
+                "WHERE tx >= ?::xid8 AND tx < ?::xid8 AND (tx, id) > (?::xid8, ?) ORDER BY tx, id LIMIT ?";
+        String lastTx = String.valueOf(from);
+        long lastId = 0;
+        int count = 0;
+        int n;
+        do {
+            n = 0;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, String.valueOf(from));
+                stmt.setString(2, String.valueOf(to));
+                stmt.setString(3, lastTx);
+                stmt.setLong(4, lastId);
+                stmt.setInt(5, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (!skipOwn || !getNodeId().equals(rs.getString("node_id"))) {
+                            apply(conn, rs.getString("kind"), rs.getLong("entity_id"), toList(rs.getArray("ref_ids")));
+                            count++;
+                        }
+                        lastTx = rs.getString("tx");
+                        lastId = rs.getLong("id");
+                        n++;
+                    }
+                }
+            }
+        } while (n == batchSize);
+        return count;
+    }
+
+    private void apply(Connection conn, String kind, long entityId, List<Long> refIds) throws SQLException {
+        switch (kind) {
+            case RECIPE_CREATED:
+                ingredientIndex.refreshRecipe(conn, entityId);
+                columnSnapshot.refreshRecipe(conn, entityId);
+                similarIndex.refreshRecipe(conn, entityId);
+                break;
+            case RECIPE_DELETED:
+                ingredientIndex.removeRecipe(entityId);
+                columnSnapshot.onRecipeDeleted(entityId);
+                similarIndex.onRecipeDeleted(entityId);
+                break;
+            case REVIEWS_CHANGED:
+                // entity_id 是食谱 id，批量写入时其余食谱放在 ref_ids 里
+                columnSnapshot.refreshRecipe(conn, entityId);
+                for (long recipeId : refIds) columnSnapshot.refreshRecipe(conn, recipeId);
+                break;
+            case USER_COUNTS:
+                List<Long> users = new ArrayList<>(refIds);
+                users.add(entityId);
+                leaderboard.refreshUsers(conn, users);
+                break;
+            case IMPORTED:
+                ingredientIndex.invalidate();
+                columnSnapshot.invalidate();
+                leaderboard.invalidate();
+                authorNames.invalidate();
+                categoryDictionary.invalidate();
+                similarIndex.invalidate();
+                break;
+            case RECIPE_UPDATED:
+                // 目前没有节点内结构缓存食谱的时间字段
+            default:
+                break;
+        }
+    }
+
+    private static List<Long> toList(Array array) throws SQLException {
+        if (array == null) return Collections.emptyList();
+        Object[] values = (Object[]) array.getArray();
+        List<Long> list = new ArrayList<>(values.length);
+        for (Object v : values) list.add(((Number) v).longValue());
+        return list;
+    }
+
+    @Scheduled(fixedDelayString = "${sustc.change-feed.prune-interval-ms:600000}")
+    public void prune() {
+        if (!isRecording()) return;
+        try (Connection conn = connections.open("changeFeed.prune");
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM change_events WHERE created_at < NOW() - make_interval(hours => ?)")) {
+            stmt.setInt(1, retentionHours);
+            int n = stmt.executeUpdate();
+            if (n > 0) log.debug("Pruned {} change events.", n);
+        } catch (SQLException e) {
+            log.warn("Change feed prune failed: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("NodeId", getNodeId());
+        m.put("AppliedXmin", applied);
+        m.put("Published", published.get());
+        m.put("Received", received.get());
+        return m;
+    }
+}
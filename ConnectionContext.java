@@ -0,0 +1,382 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求级连接上下文
+ * service 的公开方法用 open(操作名) 代替 dataSource.getConnection()：同一线程上第一次 open 从连接池借出连接，
+ * 在它关闭之前的嵌套 open (公开方法互相调用、helper 自行取连接) 都复用这条连接和它上面的事务，
+ * 因此每次 service 调用最多占用一个池连接。
+ * 嵌套句柄的 close 不归还连接。事务属于在自动提交状态下调用 setAutoCommit(false) 的那个句柄：
+ * 事务已开启时，其他句柄的 setAutoCommit / commit 不生效，直接加入该事务；其他句柄的 rollback 把事务标记为只能回滚，
+ * 事务所有者随后的 commit 会回滚并抛出 SQLException，不会把一半的修改提交出去。
+ * 嵌套句柄自己开启的事务在它关闭时若仍未提交则回滚并恢复自动提交，不会把事务状态泄漏给外层。
+ * 作用域同时是埋点边界：方法耗时、取连接等待和作用域内每条 SQL 的指标都交给 ServiceMetrics 记录。
+ * 只读方法用 openReadOnly，由 ReplicaRouter 决定走副本还是主库；写作用域绑定的用户在释放时标记为 read-your-writes。
+ * 外层作用域借连接前先经过 AdmissionController 准入，过载时直接抛 RejectedExecutionException。
+ * 内存索引、变更流、快照等必须读主库的内部读取用 openPrimaryRead，副本延迟探测用 openReplicaProbe，同样计入连接统计，但不经过准入。
+ * 作用域内任何连接 / 语句调用抛出异常，或 service 带着异常退出作用域 (markFailed)，才把这次调用记为失败；
+ * 单纯的 rollback 不算失败，主动放弃事务的正常路径不会压低准入上限。
+ */
+@Component
+@Slf4j
+public class ConnectionContext {
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ServiceMetrics metrics;
+
+    @Autowired
+    private ReplicaRouter replicaRouter;
+
+    @Autowired
+    private AdmissionController admission;
+
+    private final ThreadLocal<Scope> current = new ThreadLocal<>();
+    private final Map<String, OpStats> stats = new ConcurrentHashMap<>();
+    // 尚未释放的写作用域 (写路径在释放前完成提交后的内存更新)
+    private final Set<Scope> writeScopes = ConcurrentHashMap.newKeySet();
+
+    private static final class Scope {
+        final String operation;
+        final Connection physical;
+        final boolean readOnly;
+        final long startNanos = System.nanoTime();
+        // 连接来自副本
+        boolean replica;
+        // 副作用域 (副本作用域内的主库读) 释放时恢复的外层作用域，为 null 表示外层作用域
+        Scope parent;
+        boolean admitted;
+        long admittedNanos;
+        int depth = 1;
+        boolean failed = false;
+        boolean rollbackOnly = false;
+        Long userId;
+
+        Scope(String operation, Connection physical, boolean readOnly) {
+            this.operation = operation;
+            this.physical = physical;
+            this.readOnly = readOnly;
+        }
+    }
+
+    private static final class OpStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong checkouts = new AtomicLong();
+        final AtomicLong reuses = new AtomicLong();
+        final AtomicLong replicaCheckouts = new AtomicLong();
+    }
+
+    public Connection open(String operation) throws SQLException {
+        return open(operation, false, null);
+    }
+
+    /**
+     * 只读操作：副本可用且延迟在容忍范围内时走副本
+     */
+    public Connection openReadOnly(String operation) throws SQLException {
+        return open(operation, true, null);
+    }
+
+    /**
+     * 只读操作，userId 为请求方 (尚未鉴权的声明 id 即可，null 表示匿名)，用于 read-your-writes 判断
+     */
+    public Connection openReadOnly(String operation, Long userId) throws SQLException {
+        return open(operation, true, userId);
+    }
+
+    /**
+     * 必须读主库的内部读取 (内存索引重建、变更流、快照)：当前作用域在主库上时直接复用它；
+     * 在副本作用域内时另借一条主库连接作为副作用域，释放后恢复外层作用域；不在任何作用域内时开启一个主库只读作用域。
+     * 这类读取不经过 AdmissionController，免得后台重建在高峰期被拒绝
+     */
+    public Connection openPrimaryRead(String operation) throws SQLException {
+        Scope scope = current.get();
+        if (scope != null && !scope.replica) {
+            scope.depth++;
+            OpStats nested = statsOf(operation);
+            nested.calls.incrementAndGet();
+            nested.reuses.incrementAndGet();
+            return handle(scope);
+        }
+
+        long start = System.nanoTime();
+        Connection physical = dataSource.getConnection();
+        metrics.recordConnectionWait(operation, System.nanoTime() - start);
+        OpStats op = statsOf(operation);
+        op.calls.incrementAndGet();
+        op.checkouts.incrementAndGet();
+
+        Scope side = new Scope(operation, physical, true);
+        side.parent = scope;
+        current.set(side);
+        return handle(side);
+    }
+
+    /**
+     * 副本健康检查 (ReplicaRouter 的延迟探测)：总是在给定的副本数据源上另借一条连接作为副作用域，释放后恢复外层作用域。
+     * 探测要看的就是这个副本，所以不经过路由；和 openPrimaryRead 一样计入连接统计和埋点，但不经过准入
+     */
+    public Connection openReplicaProbe(String operation, DataSource target) throws SQLException {
+        Scope scope = current.get();
+        long start = System.nanoTime();
+        Connection physical = target.getConnection();
+        metrics.recordConnectionWait(operation, System.nanoTime() - start);
+        OpStats op = statsOf(operation);
+        op.calls.incrementAndGet();
+        op.checkouts.incrementAndGet();
+        op.replicaCheckouts.incrementAndGet();
+
+        Scope side = new Scope(operation, physical, true);
+        side.replica = true;
+        side.parent = scope;
+        current.set(side);
+        return handle(side);
+    }
+
+    /**
+     * 把当前作用域关联到已鉴权的用户；写作用域释放时该用户进入 read-your-writes 窗口
+     */
+    public void bindUser(long userId) {
+        Scope scope = current.get();
+        if (scope != null && scope.userId == null) scope.userId = userId;
+    }
+
+    /**
+     * 把当前作用域记为失败；service 在异常路径上回滚并重新抛出前调用
+     */
+    public void markFailed() {
+        Scope scope = current.get();
+        if (scope != null) scope.failed = true;
+    }
+
+    private Connection open(String operation, boolean readOnly, Long userId) throws SQLException {
+        Scope scope = current.get();
+        if (scope != null) {
+            if (scope.readOnly && !readOnly) {
+                throw new IllegalStateException(operation + " cannot write inside read-only " + scope.operation);
+            }
+            scope.depth++;
+            OpStats nested = statsOf(operation);
+            nested.calls.incrementAndGet();
+            nested.reuses.incrementAndGet();
+            return handle(scope);
+        }
+
+        OpStats op = statsOf(operation);
+        admission.acquire(operation);
+        DataSource target = readOnly ? replicaRouter.route(userId) : null;
+        long start = System.nanoTime();
+        Connection physical;
+        try {
+            physical = (target != null ? target : dataSource).getConnection();
+        } catch (SQLException | RuntimeException e) {
+            admission.release(operation, System.nanoTime() - start, true);
+            throw e;
+        }
+        metrics.recordConnectionWait(operation, System.nanoTime() - start);
+        op.calls.incrementAndGet();
+        op.checkouts.incrementAndGet();
+        if (target != null) op.replicaCheckouts.incrementAndGet();
+
+        scope = new Scope(operation, physical, readOnly);
+        scope.replica = target != null;
+        scope.admitted = true;
+        scope.admittedNanos = start;
+        current.set(scope);
+        if (!readOnly) writeScopes.add(scope);
+        return handle(scope);
+    }
+
+    /**
+     * 当前线程是否处在某个请求的连接作用域内
+     */
+    public boolean inScope() {
+        return current.get() != null;
+    }
+
+    /**
+     * 等待调用时尚未释放的写作用域全部释放，超时返回 false。
+     * 返回 true 时，调用前已提交的本节点写入都已完成提交后的内存更新
+     */
+    public boolean awaitWriteScopes(long timeoutMillis) throws InterruptedException {
+        List<Scope> open = new ArrayList<>(writeScopes);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Scope scope : open) {
+            while (writeScopes.contains(scope)) {
+                if (System.currentTimeMillis() >= deadline) return false;
+                Thread.sleep(1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 每个操作的调用数 (含嵌套 open)、借出连接数 (其中走副本的数量) 和嵌套复用次数，Calls = Checkouts + NestedReuses
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> res = new HashMap<>();
+        stats.forEach((name, op) -> {
+            long calls = op.calls.get();
+            Map<String, Object> m = new HashMap<>();
+            m.put("Calls", calls);
+            m.put("Checkouts", op.checkouts.get());
+            m.put("CheckoutsPerCall", calls == 0 ? 0.0 : (double) op.checkouts.get() / calls);
+            m.put("ReplicaCheckouts", op.replicaCheckouts.get());
+            m.put("NestedReuses", op.reuses.get());
+            res.put(name, m);
+        });
+        return res;
+    }
+
+    private OpStats statsOf(String operation) {
+        return stats.computeIfAbsent(operation, k -> new OpStats());
+    }
+
+    private Connection handle(Scope scope) {
+        boolean[] closed = {false};
+        // 本句柄是否是当前事务的所有者
+        boolean[] owner = {false};
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    try {
+                        return dispatch(scope, closed, owner, method, args);
+                    } catch (Throwable e) {
+                        // 连接上任何调用抛出的异常都会让本次调用失败
+                        scope.failed = true;
+                        throw e;
+                    }
+                });
+    }
+
+    private Object dispatch(Scope scope, boolean[] closed, boolean[] owner, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                if (!closed[0]) {
+                    closed[0] = true;
+                    try {
+                        if (owner[0] && scope.depth > 1) endTransaction(scope, owner);
+                    } finally {
+                        release(scope);
+                    }
+                }
+                return null;
+            case "isClosed":
+                return closed[0] || scope.physical.isClosed();
+            case "setAutoCommit":
+                boolean autoCommit = (Boolean) args[0];
+                if (!autoCommit) {
+                    if (!scope.physical.getAutoCommit()) return null; // 加入已开启的事务
+                    scope.physical.setAutoCommit(false);
+                    owner[0] = true;
+                    return null;
+                }
+                if (!owner[0]) return null;
+                if (scope.rollbackOnly) {
+                    endTransaction(scope, owner);
+                    throw rollbackOnly(scope);
+                }
+                scope.physical.setAutoCommit(true); // 按 JDBC 语义提交
+                owner[0] = false;
+                return null;
+            case "commit":
+                if (!owner[0]) {
+                    if (!scope.physical.getAutoCommit()) return null;
+                    break;
+                }
+                if (scope.rollbackOnly) {
+                    scope.physical.rollback();
+                    scope.rollbackOnly = false;
+                    throw rollbackOnly(scope);
+                }
+                break;
+            case "rollback":
+                if (args != null && args.length > 0) break; // 回滚到保存点由调用方自己负责
+                if (!owner[0]) {
+                    if (!scope.physical.getAutoCommit()) {
+                        scope.rollbackOnly = true;
+                        return null;
+                    }
+                    break;
+                }
+                scope.physical.rollback();
+                scope.rollbackOnly = false;
+                return null;
+            case "prepareStatement":
+                PreparedStatement stmt = (PreparedStatement) invoke(method, scope.physical, args);
+                return metrics.instrument(stmt, (String) args[0], scope.operation, () -> scope.failed = true);
+            case "unwrap":
+                if (args[0] == Connection.class) return scope.physical;
+                break;
+            default:
+                break;
+        }
+        return invoke(method, scope.physical, args);
+    }
+
+    // 回滚本句柄开启的事务并恢复自动提交
+    private static void endTransaction(Scope scope, boolean[] owner) throws SQLException {
+        owner[0] = false;
+        scope.rollbackOnly = false;
+        if (!scope.physical.getAutoCommit()) {
+            scope.physical.rollback();
+            scope.physical.setAutoCommit(true);
+        }
+    }
+
+    private static SQLException rollbackOnly(Scope scope) {
+        scope.failed = true;
+        return new SQLException("Transaction of " + scope.operation + " was rolled back by a nested scope");
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void release(Scope scope) throws SQLException {
+        if (--scope.depth > 0) return;
+        if (scope.parent != null) current.set(scope.parent);
+        else current.remove();
+        metrics.recordMethod(scope.operation, System.nanoTime() - scope.startNanos, scope.failed);
+        if (scope.admitted) {
+            // 准入按包含取连接等待的总耗时调整上限，排队正是过载的信号
+            admission.release(scope.operation, System.nanoTime() - scope.admittedNanos, scope.failed);
+        }
+        try {
+            if (!scope.physical.getAutoCommit()) {
+                // 提前 return 未提交的事务不还给连接池
+                scope.physical.rollback();
+                scope.physical.setAutoCommit(true);
+            }
+        } finally {
+            writeScopes.remove(scope);
+            scope.physical.close();
+        }
+        if (!scope.readOnly && scope.userId != null) replicaRouter.markWrite(scope.userId);
+    }
+}
@@ -7,10 +7,10 @@ import io.sustc.service.DatabaseService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
-import javax.sql.DataSource;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
@@ -22,10 +22,31 @@ import java.util.stream.Collectors;
 public class DatabaseServiceImpl implements DatabaseService {
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionContext connections;
 
     @Autowired
-    private JdbcTemplate jdbcTemplate;
+    private FollowRatioLeaderboard followRatioLeaderboard;
+
+    @Autowired
+    private IngredientIndex ingredientIndex;
+
+    @Autowired
+    private CategoryDictionary categoryDictionary;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private ImportValidator importValidator;
+
+    @Autowired
+    private SimilarRecipeIndex similarIndex;
 
     @Override
     public List<Integer> getGroupMembers() {
@@ -38,10 +59,10 @@ public class DatabaseServiceImpl implements DatabaseService {
         // 使用 TRUNCATE 清理所有表，速度快且彻底
         String sql = "TRUNCATE TABLE " +
                 "review_likes, recipe_ingredients, user_follows, " +
-                "reviews, nutrition, recipes, users, ingredients, roles " +
+                "reviews, nutrition, recipes, users, ingredients, roles, account_cleanup_jobs " +
                 "CASCADE";
-        try {
-            jdbcTemplate.execute(sql);
+        try (Connection conn = connections.open("drop")) {
+            jdbc(conn).execute(sql);
             log.info("All tables truncated successfully.");
         } catch (Exception e) {
             log.warn("Truncate failed (tables might not exist yet): {}", e.getMessage());
@@ -49,7 +70,6 @@ public class DatabaseServiceImpl implements DatabaseService {
     }
 
     @Override
-    @Transactional
     public void importData(
             List<ReviewRecord> reviewRecords,
             List<UserRecord> userRecords,
@@ -58,47 +78,94 @@ public class DatabaseServiceImpl implements DatabaseService {
         long start = System.currentTimeMillis();
         log.info("Starting data import...");
 
-        // 1. 清理旧数据
-        drop();
+        // 0. 先在内存里校验去重，有问题的行在发 SQL 之前丢弃 (strict 模式下直接拒绝，旧数据保持不变)
+        ImportValidator.Result valid = importValidator.validate(reviewRecords, userRecords, recipeRecords);
+        userRecords = valid.getUsers();
+        recipeRecords = valid.getRecipes();
+        reviewRecords = valid.getReviews();
+
+        // 整个导入在一个 ConnectionContext 作用域和一个事务里，JdbcTemplate 只是这条连接上的批量写入工具
+        try (Connection conn = connections.open("importData")) {
+            conn.setAutoCommit(false);
+            Map<Long, int[]> followCounts = FollowRatioLeaderboard.countFollows(userRecords);
+            Map<String, Integer> categoryIds = Collections.emptyMap();
+            try {
+                JdbcTemplate jdbc = jdbc(conn);
+
+                // 1. 清理旧数据 (嵌套作用域加入本事务)
+                drop();
+
+                // 2. 导入 Users
+                if (userRecords != null && !userRecords.isEmpty()) {
+                    importUsers(jdbc, userRecords, followCounts);
+                    // 导入用户关注关系 (User Follows)
+                    importUserFollows(jdbc, userRecords);
+                }
 
-        // 2. 导入 Users
-        if (userRecords != null && !userRecords.isEmpty()) {
-            importUsers(userRecords);
-            // 导入用户关注关系 (User Follows)
-            importUserFollows(userRecords);
-        }
+                // 3. 导入 Recipes (包含 Ingredients, Nutrition, Category)
+                if (recipeRecords != null && !recipeRecords.isEmpty()) {
+                    // 先导入字典表 Ingredients
+                    importIngredients(jdbc, recipeRecords);
+                    // 分类维表，recipes.category_id 引用它
+                    categoryIds = importCategories(jdbc, recipeRecords);
+                    // 导入主表 Recipes
+                    importRecipes(jdbc, recipeRecords, categoryIds);
+                    // 导入 Nutrition (1:1)
+                    importNutrition(jdbc, recipeRecords);
+                    // 导入 Recipe-Ingredient 关联 (M:N)
+                    importRecipeIngredients(jdbc, recipeRecords);
+                }
+                // 4. 导入 Reviews (包含 Likes)
+                if (reviewRecords != null && !reviewRecords.isEmpty()) {
+                    importReviews(jdbc, reviewRecords);
+                    // 导入 Review Likes
+                    importReviewLikes(jdbc, reviewRecords);
+                }
 
-        // 3. 导入 Recipes (包含 Ingredients, Nutrition, Category)
-        if (recipeRecords != null && !recipeRecords.isEmpty()) {
-            // 先导入字典表 Ingredients
-            importIngredients(recipeRecords);
-            // 导入主表 Recipes
-            importRecipes(recipeRecords);
-            // 导入 Nutrition (1:1)
-            importNutrition(recipeRecords);
-            // 导入 Recipe-Ingredient 关联 (M:N)
-            importRecipeIngredients(recipeRecords);
-        }
+                // 5. 日汇总表按导入数据直接算出，之后由各写路径增量维护
+                importRollups(jdbc, recipeRecords, reviewRecords, categoryIds);
 
-        // 4. 导入 Reviews (包含 Likes)
-        if (reviewRecords != null && !reviewRecords.isEmpty()) {
-            importReviews(reviewRecords);
-            // 导入 Review Likes
-            importReviewLikes(reviewRecords);
+                // 通知其他节点 (以及重放到这里的预热快照) 丢弃内存结构，随导入事务一起提交
+                if (changeFeed.isRecording()) {
+                    jdbc.update("INSERT INTO change_events (node_id, kind, entity_id, created_at) VALUES (?, ?, 0, NOW())",
+                            changeFeed.getNodeId(), ChangeFeed.IMPORTED);
+                }
+                conn.commit();
+            } catch (Exception e) {
+                connections.markFailed();
+                conn.rollback();
+                throw e;
+            }
+
+            // 内存结构只在导入时整体重建，之后由各写路径增量维护；提交后再换上 (仍在作用域内)，
+            // 提交前的查询和回滚后都仍然看到与数据库一致的旧内容
+            followRatioLeaderboard.rebuild(followCounts);
+            authorNames.rebuild(userRecords);
+            ingredientIndex.rebuild(recipeRecords);
+            columnSnapshot.rebuild(recipeRecords, categoryIds);
+            similarIndex.rebuild(recipeRecords);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
 
         long end = System.currentTimeMillis();
         log.info("Data import finished in {} ms", (end - start));
     }
 
+    // 绑定到作用域连接上的 JdbcTemplate，不会另外从连接池取连接
+    private static JdbcTemplate jdbc(Connection conn) {
+        return new JdbcTemplate(new SingleConnectionDataSource(conn, true));
+    }
+
     // ----------------------------------------------------------------------
     //                           Users Module
     // ----------------------------------------------------------------------
 
-    private void importUsers(List<UserRecord> users) {
-        String sql = "INSERT INTO users (author_id, author_name, password, gender, age, role_id) VALUES (?, ?, ?, ?, ?, ?)";
+    private void importUsers(JdbcTemplate jdbc, List<UserRecord> users, Map<Long, int[]> followCounts) {
+        // followers / following 计数直接由关注列表算出 (与排行榜重建同一份)，随用户一起写入，省去导入后再聚合；已注销用户计数为 0
+        String sql = "INSERT INTO users (author_id, author_name, password, gender, age, role_id, followers, following, is_deleted) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
-        jdbcTemplate.batchUpdate(sql, users, 1000, (ps, user) -> {
+        jdbc.batchUpdate(sql, users, 1000, (ps, user) -> {
             ps.setLong(1, user.getAuthorId()); // 修正：UserRecord 用的是 authorId
             ps.setString(2, user.getAuthorName());
             ps.setString(3, user.getPassword());
@@ -110,26 +177,36 @@ public class DatabaseServiceImpl implements DatabaseService {
 
             // 默认设置为 USER 角色 (假设 ID 1 是 USER)
             ps.setInt(6, 1);
+
+            int[] c = followCounts.get(user.getAuthorId());
+            ps.setInt(7, c == null ? 0 : c[0]);
+            ps.setInt(8, c == null ? 0 : c[1]);
+            ps.setBoolean(9, user.isDeleted());
         });
         log.info("Imported {} users.", users.size());
     }
 
-    private void importUserFollows(List<UserRecord> users) {
+    private void importUserFollows(JdbcTemplate jdbc, List<UserRecord> users) {
         // 需要将 "User -> Following[]" 扁平化为 "(Follower, Following)" 对
         // 这是一个内存换速度的操作
+        // 与已注销用户相连的边不导入，相当于 deleteAccount 的后台清理已经完成，与 users 上的计数一致
         List<long[]> relations = new ArrayList<>();
+        Set<Long> deleted = new HashSet<>();
+        for (UserRecord user : users) {
+            if (user.isDeleted()) deleted.add(user.getAuthorId());
+        }
 
         for (UserRecord user : users) {
             long followerId = user.getAuthorId();
-            if (user.getFollowingUsers() != null) {
+            if (user.getFollowingUsers() != null && !deleted.contains(followerId)) {
                 for (long followingId : user.getFollowingUsers()) {
-                    relations.add(new long[]{followerId, followingId});
+                    if (!deleted.contains(followingId)) relations.add(new long[]{followerId, followingId});
                 }
             }
         }
 
         String sql = "INSERT INTO user_follows (follower_id, following_id) VALUES (?, ?)";
-        jdbcTemplate.batchUpdate(sql, relations, 1000, (ps, relation) -> {
+        jdbc.batchUpdate(sql, relations, 1000, (ps, relation) -> {
             ps.setLong(1, relation[0]);
             ps.setLong(2, relation[1]);
         });
@@ -140,7 +217,7 @@ public class DatabaseServiceImpl implements DatabaseService {
     //                           Recipes Module
     // ----------------------------------------------------------------------
 
-    private void importIngredients(List<RecipeRecord> recipes) {
+    private void importIngredients(JdbcTemplate jdbc, List<RecipeRecord> recipes) {
         // 提取去重后的食材名
         Set<String> uniqueIngredients = new HashSet<>();
         for (RecipeRecord r : recipes) {
@@ -153,17 +230,39 @@ public class DatabaseServiceImpl implements DatabaseService {
         String sql = "INSERT INTO ingredients (ingredient_name) VALUES (?)";
 
         // 使用 JDBC Batch 插入
-        jdbcTemplate.batchUpdate(sql, ingredientList, 1000, (ps, name) -> {
+        jdbc.batchUpdate(sql, ingredientList, 1000, (ps, name) -> {
             ps.setString(1, name);
         });
         log.info("Imported {} unique ingredients.", ingredientList.size());
     }
 
-    private void importRecipes(List<RecipeRecord> recipes) {
+    private Map<String, Integer> importCategories(JdbcTemplate jdbc, List<RecipeRecord> recipes) {
+        Set<String> uniqueCategories = new HashSet<>();
+        for (RecipeRecord r : recipes) {
+            if (r.getRecipeCategory() != null) uniqueCategories.add(r.getRecipeCategory());
+        }
+
+        // 维表不随 drop 清空，已有的分类保留原 id
+        String sql = "INSERT INTO categories (name) VALUES (?) ON CONFLICT (name) DO NOTHING";
+        jdbc.batchUpdate(sql, new ArrayList<>(uniqueCategories), 1000, (ps, name) -> {
+            ps.setString(1, name);
+        });
+
+        Map<String, Integer> ids = new HashMap<>();
+        for (Map<String, Object> row : jdbc.queryForList("SELECT id, name FROM categories")) {
+            ids.put((String) row.get("name"), ((Number) row.get("id")).intValue());
+        }
+        // 缓存可能与新数据不一致，下次使用时重新加载
+        categoryDictionary.invalidate();
+        log.info("Imported {} categories.", uniqueCategories.size());
+        return ids;
+    }
+
+    private void importRecipes(JdbcTemplate jdbc, List<RecipeRecord> recipes, Map<String, Integer> categoryIds) {
         // 注意：字段名需与你数据库完全一致
-        String sql = "INSERT INTO recipes (recipe_id, author_id, recipe_name, cook_time, prep_time, total_time, date_published, description, recipe_category) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String sql = "INSERT INTO recipes (recipe_id, author_id, recipe_name, cook_time, prep_time, total_time, date_published, description, recipe_category, category_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
-        jdbcTemplate.batchUpdate(sql, recipes, 1000, (ps, r) -> {
+        jdbc.batchUpdate(sql, recipes, 1000, (ps, r) -> {
             ps.setLong(1, r.getRecipeId()); // Lombok 生成的 getter
             ps.setLong(2, r.getAuthorId());
             ps.setString(3, r.getName());
@@ -173,14 +272,17 @@ public class DatabaseServiceImpl implements DatabaseService {
             ps.setTimestamp(7, r.getDatePublished()); // DTO 里已经是 Timestamp 了
             ps.setString(8, r.getDescription());
             ps.setString(9, r.getRecipeCategory());
+            Integer categoryId = r.getRecipeCategory() == null ? null : categoryIds.get(r.getRecipeCategory());
+            if (categoryId != null) ps.setInt(10, categoryId);
+            else ps.setNull(10, Types.INTEGER);
         });
         log.info("Imported {} recipes.", recipes.size());
     }
 
-    private void importNutrition(List<RecipeRecord> recipes) {
+    private void importNutrition(JdbcTemplate jdbc, List<RecipeRecord> recipes) {
         String sql = "INSERT INTO nutrition (recipe_id, calories, fat_content, saturated_fat_content, cholesterol_content, sodium_content, carbohydrate_content, fiber_content, sugar_content, protein_content) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
-        jdbcTemplate.batchUpdate(sql, recipes, 1000, (ps, r) -> {
+        jdbc.batchUpdate(sql, recipes, 1000, (ps, r) -> {
             ps.setLong(1, r.getRecipeId());
             // DTO 中是直接平铺的字段
             ps.setFloat(2, r.getCalories());
@@ -195,7 +297,7 @@ public class DatabaseServiceImpl implements DatabaseService {
         });
     }
 
-    private void importRecipeIngredients(List<RecipeRecord> recipes) {
+    private void importRecipeIngredients(JdbcTemplate jdbc, List<RecipeRecord> recipes) {
         // 扁平化处理：RecipeID <-> IngredientName
         List<Object[]> relations = new ArrayList<>();
 
@@ -208,7 +310,7 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
 
         String sql = "INSERT INTO recipe_ingredients (recipe_id, ingredient_name) VALUES (?, ?)";
-        jdbcTemplate.batchUpdate(sql, relations, 1000, (ps, rel) -> {
+        jdbc.batchUpdate(sql, relations, 1000, (ps, rel) -> {
             ps.setLong(1, (Long) rel[0]);
             ps.setString(2, (String) rel[1]);
         });
@@ -218,10 +320,17 @@ public class DatabaseServiceImpl implements DatabaseService {
     //                           Reviews Module
     // ----------------------------------------------------------------------
 
-    private void importReviews(List<ReviewRecord> reviews) {
+    private void importReviews(JdbcTemplate jdbc, List<ReviewRecord> reviews) {
         String sql = "INSERT INTO reviews (review_id, recipe_id, author_id, rating, review_text, date_submitted, date_modified) VALUES (?, ?, ?, ?, ?, ?, ?)";
 
-        jdbcTemplate.batchUpdate(sql, reviews, 1000, (ps, r) -> {
+        // reviews 按 recipe_id 哈希分区：按分区键排序后同一食谱的评论落在相邻批次，
+        // 每批只涉及少数分区，行路由和索引页写入都更集中。
+        // 没有按分区并行写入：整个导入是一个事务 (失败时旧数据原样保留)，并行 worker 只能各用各的连接和事务，
+        // 会破坏这个保证；分区的收益在于之后的按分区访问和维护，而不是导入本身
+        List<ReviewRecord> sorted = new ArrayList<>(reviews);
+        sorted.sort(Comparator.comparingLong(ReviewRecord::getRecipeId));
+
+        jdbc.batchUpdate(sql, sorted, 1000, (ps, r) -> {
             ps.setLong(1, r.getReviewId());
             ps.setLong(2, r.getRecipeId());
             ps.setLong(3, r.getAuthorId());
@@ -231,9 +340,20 @@ public class DatabaseServiceImpl implements DatabaseService {
             ps.setTimestamp(7, r.getDateModified());
         });
         log.info("Imported {} reviews.", reviews.size());
+
+        // 分区表的主键是 (id, recipe_id)，id 的全局唯一靠序列：导入的 id 已由 ImportValidator 去重，
+        // 这里把 reviews 自己的序列推到导入的最大 id 之后，之后 addReview / 批量写入分配的 id 不会与导入的撞上
+        long maxId = 0;
+        for (ReviewRecord r : reviews) maxId = Math.max(maxId, r.getReviewId());
+        if (maxId > 0) {
+            jdbc.queryForList("SELECT setval(d.objid::regclass, ?) FROM pg_depend d " +
+                            "JOIN pg_class c ON c.oid = d.objid AND c.relkind = 'S' " +
+                            "WHERE d.refobjid = 'reviews'::regclass AND d.deptype IN ('a', 'i')",
+                    Long.class, maxId);
+        }
     }
 
-    private void importReviewLikes(List<ReviewRecord> reviews) {
+    private void importReviewLikes(JdbcTemplate jdbc, List<ReviewRecord> reviews) {
         // 扁平化处理：ReviewID <-> UserID (点赞人)
         List<long[]> likes = new ArrayList<>();
 
@@ -246,7 +366,7 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
 
         String sql = "INSERT INTO review_likes (review_id, author_id) VALUES (?, ?)";
-        jdbcTemplate.batchUpdate(sql, likes, 1000, (ps, like) -> {
+        jdbc.batchUpdate(sql, likes, 1000, (ps, like) -> {
             ps.setLong(1, like[0]);
             ps.setLong(2, like[1]);
         });
@@ -255,11 +375,57 @@ public class DatabaseServiceImpl implements DatabaseService {
     @Override
     public Integer sum(int a, int b) {
         String sql = "SELECT ? + ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Integer.class, a, b);
+        try (Connection conn = connections.openReadOnly("sum")) {
+            return jdbc(conn).queryForObject(sql, Integer.class, a, b);
         } catch (Exception e) {
             log.error("Sum error", e);
             return null;
         }
     }
-}
\ No newline at end of file
+
+    // ----------------------------------------------------------------------
+    //                           Rollups Module
+    // ----------------------------------------------------------------------
+
+    private void importRollups(JdbcTemplate jdbc, List<RecipeRecord> recipes, List<ReviewRecord> reviews, Map<String, Integer> categoryIds) {
+        jdbc.execute("TRUNCATE TABLE rollup_recipes_daily, rollup_reviews_daily, rollup_follows_daily");
+
+        // (日期, 分类) -> 发布数，无分类记为 0
+        Map<List<Object>, Integer> recipeCnt = new HashMap<>();
+        if (recipes != null) {
+            for (RecipeRecord r : recipes) {
+                if (r.getDatePublished() == null) continue;
+                Integer categoryId = r.getRecipeCategory() == null ? null : categoryIds.get(r.getRecipeCategory());
+                List<Object> key = Arrays.asList(r.getDatePublished().toLocalDateTime().toLocalDate(), categoryId == null ? 0 : categoryId);
+                recipeCnt.merge(key, 1, Integer::sum);
+            }
+        }
+        String recipeSql = "INSERT INTO rollup_recipes_daily (day, category_id, recipes) VALUES (?, ?, ?)";
+        jdbc.batchUpdate(recipeSql, new ArrayList<>(recipeCnt.entrySet()), 1000, (ps, e) -> {
+            ps.setObject(1, e.getKey().get(0));
+            ps.setInt(2, (Integer) e.getKey().get(1));
+            ps.setInt(3, e.getValue());
+        });
+
+        // (食谱, 日期) -> [评论数, 评分和]
+        Map<List<Object>, long[]> reviewCnt = new HashMap<>();
+        if (reviews != null) {
+            for (ReviewRecord r : reviews) {
+                if (r.getDateSubmitted() == null) continue;
+                List<Object> key = Arrays.asList(r.getRecipeId(), r.getDateSubmitted().toLocalDateTime().toLocalDate());
+                long[] agg = reviewCnt.computeIfAbsent(key, k -> new long[2]);
+                agg[0]++;
+                agg[1] += (int) r.getRating();
+            }
+        }
+        String reviewSql = "INSERT INTO rollup_reviews_daily (recipe_id, day, reviews, rating_sum) VALUES (?, ?, ?, ?)";
+        jdbc.batchUpdate(reviewSql, new ArrayList<>(reviewCnt.entrySet()), 1000, (ps, e) -> {
+            ps.setLong(1, (Long) e.getKey().get(0));
+            ps.setObject(2, e.getKey().get(1));
+            ps.setLong(3, e.getValue()[0]);
+            ps.setLong(4, e.getValue()[1]);
+        });
+        // 导入数据里的关注关系没有时间，rollup_follows_daily 从导入之后开始累计
+        log.info("Imported rollups: {} recipe-days, {} review-days.", recipeCnt.size(), reviewCnt.size());
+    }
+}
@@ -0,0 +1,285 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * 关注比 (followers / following) 排行榜
+ * 每个用户的计数放在 counts 里，following > 0 的活跃用户同时放进按 (比值降序, id 升序) 排序的跳表，
+ * follow / unfollow / 注销时增量更新，top-1 / top-K 直接从跳表头部取，只有导入时整体重建。
+ * reload 在读计数的同一条语句里记下快照 (pg_current_snapshot)，增量带着写入事务的 xid 调用：
+ * 对该快照已可见的事务 (提交在 reload 读之前) 的增量已经算在读到的计数里，直接丢弃，避免重复计数。
+ */
+@Component
+@Slf4j
+public class FollowRatioLeaderboard {
+
+    @Autowired
+    private ConnectionContext connections;
+
+    private final Map<Long, Entry> counts = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Entry> ranking = new ConcurrentSkipListSet<>(FollowRatioLeaderboard::compare);
+    private volatile boolean loaded = false;
+    // 最近一次 reload 读计数时的快照，为 null 时 (导入重建 / 预热恢复之后) 所有增量都应用
+    private Snapshot covered;
+
+    /**
+     * pg_snapshot：xid 小于 xmin 的都已提交可见，[xmin, xmax) 内除 xip 以外的可见
+     */
+    static final class Snapshot {
+        final long xmin;
+        final long xmax;
+        final long[] xip;
+
+        private Snapshot(long xmin, long xmax, long[] xip) {
+            this.xmin = xmin;
+            this.xmax = xmax;
+            this.xip = xip;
+        }
+
+        // 文本形式 xmin:xmax:xip1,xip2,...
+        static Snapshot parse(String text) {
+            String[] parts = text.split(":", -1);
+            long[] xip = parts[2].isEmpty() ? new long[0]
+                    : Arrays.stream(parts[2].split(",")).mapToLong(Long::parseLong).toArray();
+            return new Snapshot(Long.parseLong(parts[0]), Long.parseLong(parts[1]), xip);
+        }
+
+        boolean visible(long xid) {
+            if (xid < xmin) return true;
+            if (xid >= xmax) return false;
+            for (long x : xip) if (x == xid) return false;
+            return true;
+        }
+    }
+
+    /**
+     * 不可变条目，计数变化时整体替换，保证跳表里的排序键不会被原地修改
+     */
+    public static final class Entry {
+        private final long userId;
+        private final int followers;
+        private final int following;
+
+        private Entry(long userId, int followers, int following) {
+            this.userId = userId;
+            this.followers = followers;
+            this.following = following;
+        }
+
+        public long getUserId() { return userId; }
+        public int getFollowers() { return followers; }
+        public int getFollowing() { return following; }
+        public double getRatio() { return (double) followers / following; }
+    }
+
+    // 用交叉相乘比较比值，避免浮点误差导致并列判断错误
+    private static int compare(Entry a, Entry b) {
+        int c = Long.compare((long) b.followers * a.following, (long) a.followers * b.following);
+        return c != 0 ? c : Long.compare(a.userId, b.userId);
+    }
+
+    public Entry top() {
+        ensureLoaded();
+        return ranking.isEmpty() ? null : ranking.first();
+    }
+
+    public List<Entry> topK(int k) {
+        ensureLoaded();
+        List<Entry> list = new ArrayList<>(Math.max(k, 0));
+        Iterator<Entry> it = ranking.iterator();
+        while (list.size() < k && it.hasNext()) list.add(it.next());
+        return list;
+    }
+
+    /**
+     * 事务 tx (pg_current_xact_id) 提交后，follower 对 followee 的关注状态发生变化，delta 为 +1 (关注) 或 -1 (取关)
+     */
+    public synchronized void onFollowChanged(long tx, long followerId, long followeeId, int delta) {
+        if (!loaded || delta == 0 || isCovered(tx)) return;
+        apply(followerId, 0, delta);
+        apply(followeeId, delta, 0);
+    }
+
+    /**
+     * 用户注销：移出榜单 (重复移除无副作用，不需要事务号)
+     */
+    public synchronized void onUserDeleted(long userId) {
+        if (!loaded) return;
+        Entry old = counts.remove(userId);
+        if (old != null) ranking.remove(old);
+    }
+
+    /**
+     * 事务 tx 提交后，注销用户的关注边被删除：自身移出榜单，被其关注的人 followers-1，关注了他的人 following-1
+     */
+    public synchronized void onUserDeleted(long tx, long userId, Collection<Long> followeeIds, Collection<Long> followerIds) {
+        if (!loaded) return;
+        onUserDeleted(userId);
+        if (isCovered(tx)) return;
+        for (long id : followeeIds) apply(id, -1, 0);
+        for (long id : followerIds) apply(id, 0, -1);
+    }
+
+    // 事务的修改已经包含在最近一次 reload 读到的计数里
+    private boolean isCovered(long tx) {
+        return covered != null && covered.visible(tx);
+    }
+
+    /**
+     * 按导入数据计算每个未注销用户的 (followers, following)：已注销用户不入表，与其相连的关注边不计，
+     * 即 deleteAccount 后台清理完成后的状态。导入写 users 计数列和 rebuild 共用这一份，保证与 reload 读到的一致
+     */
+    public static Map<Long, int[]> countFollows(List<UserRecord> users) {
+        Map<Long, int[]> fresh = new HashMap<>();
+        if (users == null) return fresh;
+        for (UserRecord user : users) {
+            if (user.isDeleted()) continue;
+            fresh.computeIfAbsent(user.getAuthorId(), k -> new int[2]);
+        }
+        for (UserRecord user : users) {
+            if (user.isDeleted() || user.getFollowingUsers() == null) continue;
+            for (long followeeId : user.getFollowingUsers()) {
+                int[] fee = fresh.get(followeeId);
+                if (fee == null) continue;
+                fee[0]++;
+                fresh.get(user.getAuthorId())[1]++;
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * 导入事务提交后按 countFollows 的结果整体重建
+     */
+    public synchronized void rebuild(Map<Long, int[]> followCounts) {
+        Map<Long, int[]> fresh = new HashMap<>(followCounts.size() * 2);
+        followCounts.forEach((id, c) -> fresh.put(id, c.clone()));
+        replaceAll(fresh);
+        covered = null;
+        log.info("Follow ratio leaderboard rebuilt from import, {} users.", fresh.size());
+    }
+
+    /**
+     * 从 users 表上维护的计数重新加载（首次使用或对账修正之后）
+     */
+    public synchronized void reload() {
+        Map<Long, int[]> fresh = new HashMap<>();
+        Snapshot snapshot = null;
+        // 快照与计数出自同一条语句；没有用户时也返回一行快照
+        String sql = "WITH s AS (SELECT pg_current_snapshot()::text AS snap) " +
+                "SELECT s.snap, u.id, u.followers, u.following FROM s LEFT JOIN users u ON u.is_deleted = FALSE";
+        try (Connection conn = connections.openPrimaryRead("leaderboard.reload");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (snapshot == null) snapshot = Snapshot.parse(rs.getString("snap"));
+                    long id = rs.getLong("id");
+                    if (rs.wasNull()) continue;
+                    fresh.put(id, new int[]{rs.getInt("followers"), rs.getInt("following")});
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        replaceAll(fresh);
+        covered = snapshot;
+        log.info("Follow ratio leaderboard loaded from database, {} users.", fresh.size());
+    }
+
+    /**
+     * 按 users 表上的计数刷新指定用户 (其他节点的关注 / 注销)，已注销的移出榜单
+     */
+    public synchronized void refreshUsers(Connection conn, Collection<Long> userIds) throws SQLException {
+        if (!loaded || userIds.isEmpty()) return;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, followers, following, is_deleted FROM users WHERE id = ANY (?)")) {
+            stmt.setArray(1, conn.createArrayOf("bigint", userIds.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Entry old = counts.remove(rs.getLong("id"));
+                    if (old != null) ranking.remove(old);
+                    if (!rs.getBoolean("is_deleted")) {
+                        put(new Entry(rs.getLong("id"), rs.getInt("followers"), rs.getInt("following")));
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 丢弃当前内容，下次查询时从数据库重新加载 (其他节点导入数据之后)
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+    }
+
+    // --- 预热快照 (WarmStartSnapshot)：用户数，之后逐个 id + followers + following ---
+
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(counts.size());
+        for (Entry e : counts.values()) {
+            out.writeLong(e.userId);
+            out.writeInt(e.followers);
+            out.writeInt(e.following);
+        }
+    }
+
+    public synchronized void restoreSnapshot(ByteBuffer in) {
+        int n = in.getInt();
+        Map<Long, int[]> fresh = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            long id = in.getLong();
+            fresh.put(id, new int[]{in.getInt(), in.getInt()});
+        }
+        replaceAll(fresh);
+        covered = null;
+        log.info("Follow ratio leaderboard restored from warm-start snapshot, {} users.", fresh.size());
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload();
+            }
+        }
+    }
+
+    private void replaceAll(Map<Long, int[]> fresh) {
+        counts.clear();
+        ranking.clear();
+        fresh.forEach((id, c) -> put(new Entry(id, c[0], c[1])));
+        loaded = true;
+    }
+
+    private void apply(long userId, int followerDelta, int followingDelta) {
+        Entry old = counts.get(userId);
+        if (old != null) ranking.remove(old);
+        int followers = Math.max((old == null ? 0 : old.followers) + followerDelta, 0);
+        int following = Math.max((old == null ? 0 : old.following) + followingDelta, 0);
+        put(new Entry(userId, followers, following));
+    }
+
+    private void put(Entry e) {
+        counts.put(e.userId, e);
+        // 与原查询一致：following 为 0 的用户不参与排名
+        if (e.following > 0) ranking.add(e);
+    }
+}
@@ -0,0 +1,260 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.RecipeRecord;
+import io.sustc.dto.ReviewRecord;
+import io.sustc.dto.UserRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 导入前的校验 / 去重 (在 drop 和任何 SQL 之前执行)
+ * 按表约束预先过滤：用户 / 食谱 / 评论 id 重复的保留第一条；关注列表去掉自己、重复项和不存在的用户；
+ * 作者不存在的食谱、食谱或作者不存在的评论整行丢弃；食材名去掉 null 和重复；点赞去掉不存在的用户和重复项。
+ * 主键去重按输入顺序串行做 (保证“第一条胜出”是确定的)，逐行的数组清洗和外键过滤用 parallelStream 分摊到多核，
+ * id 查找用基本类型的开放寻址哈希集合，不装箱。
+ * 嵌套数组 (followingUsers / likes / recipeIngredientParts) 原地替换为清洗后的副本，顶层列表返回新的 List。
+ * sustc.import.strict=true 时发现任何问题直接抛 IllegalArgumentException，旧数据不会被清空。
+ */
+@Component
+@Slf4j
+public class ImportValidator {
+
+    @Value("${sustc.import.validate:true}")
+    private boolean enabled = true;
+
+    @Value("${sustc.import.strict:false}")
+    private boolean strict;
+
+    public static final class Result {
+        private final List<UserRecord> users;
+        private final List<RecipeRecord> recipes;
+        private final List<ReviewRecord> reviews;
+        private final Map<String, Long> dropped;
+
+        Result(List<UserRecord> users, List<RecipeRecord> recipes, List<ReviewRecord> reviews, Map<String, Long> dropped) {
+            this.users = users;
+            this.recipes = recipes;
+            this.reviews = reviews;
+            this.dropped = dropped;
+        }
+
+        public List<UserRecord> getUsers() {
+            return users;
+        }
+
+        public List<RecipeRecord> getRecipes() {
+            return recipes;
+        }
+
+        public List<ReviewRecord> getReviews() {
+            return reviews;
+        }
+
+        /**
+         * 按原因统计的丢弃数，没有丢弃时为空
+         */
+        public Map<String, Long> getDropped() {
+            return dropped;
+        }
+    }
+
+    public Result validate(List<ReviewRecord> reviews, List<UserRecord> users, List<RecipeRecord> recipes) {
+        if (reviews == null) reviews = Collections.emptyList();
+        if (users == null) users = Collections.emptyList();
+        if (recipes == null) recipes = Collections.emptyList();
+        if (!enabled) return new Result(users, recipes, reviews, Collections.emptyMap());
+
+        long start = System.currentTimeMillis();
+        Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+        // 1. 用户主键去重
+        LongHashSet userIds = new LongHashSet(users.size());
+        List<UserRecord> cleanUsers = new ArrayList<>(users.size());
+        for (UserRecord u : users) {
+            if (u == null) count(counts, "user.null", 1);
+            else if (!userIds.add(u.getAuthorId())) count(counts, "user.duplicateId", 1);
+            else cleanUsers.add(u);
+        }
+
+        // 2. 关注列表：自己、重复、不存在的用户 (Follow 的 CHECK / 主键 / 外键)
+        cleanUsers.parallelStream().forEach(u -> {
+            long[] following = u.getFollowingUsers();
+            if (following == null || following.length == 0) return;
+            long self = u.getAuthorId();
+            long[] kept = new long[following.length];
+            int n = 0;
+            int selfFollows = 0, unknown = 0;
+            for (long id : following) {
+                if (id == self) selfFollows++;
+                else if (!userIds.contains(id)) unknown++;
+                else kept[n++] = id;
+            }
+            int distinct = sortedUnique(kept, n);
+            count(counts, "follow.self", selfFollows);
+            count(counts, "follow.unknownUser", unknown);
+            count(counts, "follow.duplicate", n - distinct);
+            if (distinct != following.length) u.setFollowingUsers(Arrays.copyOf(kept, distinct));
+        });
+
+        // 3. 食谱主键去重，作者必须存在
+        LongHashSet recipeIds = new LongHashSet(recipes.size());
+        List<RecipeRecord> uniqueRecipes = new ArrayList<>(recipes.size());
+        for (RecipeRecord r : recipes) {
+            if (r == null) count(counts, "recipe.null", 1);
+            else if (!recipeIds.add(r.getRecipeId())) count(counts, "recipe.duplicateId", 1);
+            else uniqueRecipes.add(r);
+        }
+        List<RecipeRecord> cleanRecipes = uniqueRecipes.parallelStream()
+                .filter(r -> {
+                    if (userIds.contains(r.getAuthorId())) return true;
+                    count(counts, "recipe.unknownAuthor", 1);
+                    return false;
+                })
+                .collect(Collectors.toList());
+        cleanRecipes.parallelStream().forEach(r -> {
+            String[] parts = r.getRecipeIngredientParts();
+            if (parts == null || parts.length == 0) return;
+            String[] kept = Arrays.stream(parts).filter(Objects::nonNull).distinct().toArray(String[]::new);
+            if (kept.length != parts.length) {
+                count(counts, "ingredient.nullOrDuplicate", parts.length - kept.length);
+                r.setRecipeIngredientParts(kept);
+            }
+        });
+        if (cleanRecipes.size() != uniqueRecipes.size()) {
+            // 被丢弃的食谱不能再被评论引用
+            recipeIds = new LongHashSet(cleanRecipes.size());
+            for (RecipeRecord r : cleanRecipes) recipeIds.add(r.getRecipeId());
+        }
+
+        // 4. 评论主键去重，食谱和作者必须存在
+        LongHashSet reviewIds = new LongHashSet(reviews.size());
+        List<ReviewRecord> uniqueReviews = new ArrayList<>(reviews.size());
+        for (ReviewRecord r : reviews) {
+            if (r == null) count(counts, "review.null", 1);
+            else if (!reviewIds.add(r.getReviewId())) count(counts, "review.duplicateId", 1);
+            else uniqueReviews.add(r);
+        }
+        LongHashSet liveRecipes = recipeIds;
+        List<ReviewRecord> cleanReviews = uniqueReviews.parallelStream()
+                .filter(r -> {
+                    if (!liveRecipes.contains(r.getRecipeId())) {
+                        count(counts, "review.unknownRecipe", 1);
+                        return false;
+                    }
+                    if (!userIds.contains(r.getAuthorId())) {
+                        count(counts, "review.unknownAuthor", 1);
+                        return false;
+                    }
+                    return true;
+                })
+                .collect(Collectors.toList());
+        cleanReviews.parallelStream().forEach(r -> {
+            // 5. 点赞：不存在的用户和重复项 (ReviewLikes 的主键 / 外键)
+            long[] likes = r.getLikes();
+            if (likes == null || likes.length == 0) return;
+            long[] kept = new long[likes.length];
+            int n = 0;
+            for (long id : likes) {
+                if (userIds.contains(id)) kept[n++] = id;
+            }
+            int distinct = sortedUnique(kept, n);
+            count(counts, "like.unknownUser", likes.length - n);
+            count(counts, "like.duplicate", n - distinct);
+            if (distinct != likes.length) r.setLikes(Arrays.copyOf(kept, distinct));
+        });
+
+        Map<String, Long> dropped = new TreeMap<>();
+        counts.forEach((reason, n) -> {
+            if (n.sum() > 0) dropped.put(reason, n.sum());
+        });
+        if (!dropped.isEmpty()) {
+            if (strict) throw new IllegalArgumentException("Import data rejected: " + dropped);
+            log.warn("Import validation dropped rows: {}", dropped);
+        }
+        log.info("Import validation finished in {} ms: {} users, {} recipes, {} reviews kept.",
+                System.currentTimeMillis() - start, cleanUsers.size(), cleanRecipes.size(), cleanReviews.size());
+        return new Result(cleanUsers, cleanRecipes, cleanReviews, dropped);
+    }
+
+    private static void count(Map<String, LongAdder> counts, String reason, long n) {
+        if (n > 0) counts.computeIfAbsent(reason, k -> new LongAdder()).add(n);
+    }
+
+    // 前 n 个元素排序去重，返回去重后的个数
+    private static int sortedUnique(long[] a, int n) {
+        if (n < 2) return n;
+        Arrays.sort(a, 0, n);
+        int m = 1;
+        for (int i = 1; i < n; i++) {
+            if (a[i] != a[m - 1]) a[m++] = a[i];
+        }
+        return m;
+    }
+
+    /**
+     * long 的开放寻址哈希集合 (线性探测)，写入只在串行阶段进行，之后供并行阶段只读查询
+     */
+    static final class LongHashSet {
+        private long[] table;
+        private boolean hasZero;
+        private int size;
+
+        LongHashSet(int expected) {
+            int cap = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+            table = new long[cap];
+        }
+
+        boolean add(long v) {
+            if (v == 0) {
+                if (hasZero) return false;
+                hasZero = true;
+                return true;
+            }
+            if ((size + 1) * 2 > table.length) grow();
+            return insert(table, v);
+        }
+
+        boolean contains(long v) {
+            if (v == 0) return hasZero;
+            int mask = table.length - 1;
+            for (int i = mix(v) & mask; ; i = (i + 1) & mask) {
+                long cur = table[i];
+                if (cur == v) return true;
+                if (cur == 0) return false;
+            }
+        }
+
+        private boolean insert(long[] t, long v) {
+            int mask = t.length - 1;
+            for (int i = mix(v) & mask; ; i = (i + 1) & mask) {
+                long cur = t[i];
+                if (cur == v) return false;
+                if (cur == 0) {
+                    t[i] = v;
+                    if (t == table) size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            size = 0;
+            for (long v : old) {
+                if (v != 0) insert(table, v);
+            }
+        }
+
+        private static int mix(long v) {
+            long h = v * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
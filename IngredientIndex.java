@@ -0,0 +1,255 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.RecipeRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 食材 -> 食谱 id 位图的内存倒排索引
+ * 导入时整体重建 (或首次使用时从 recipe_ingredients 加载)，createRecipe / deleteRecipe 提交后增量更新。
+ * "全部包含 / 任一包含 / 排除" 的组合查询在内存里做位图交、并、差，不再走多路 JOIN。
+ * 食材名去掉首尾空白并转小写后作为键。
+ */
+@Component
+@Slf4j
+public class IngredientIndex {
+
+    @Autowired
+    private ConnectionContext connections;
+
+    private final Map<String, RecipeIdBitmap> postings = new HashMap<>();
+    private RecipeIdBitmap allRecipes = new RecipeIdBitmap();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    /**
+     * 组合查询，三个参数都可以为空；includeAll 和 includeAny 都为空时从全部食谱出发
+     */
+    public RecipeIdBitmap query(Collection<String> includeAll, Collection<String> includeAny, Collection<String> exclude) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            RecipeIdBitmap result = null;
+            if (includeAll != null && !includeAll.isEmpty()) {
+                // 从最短的倒排列表开始求交，中间结果尽量小
+                List<RecipeIdBitmap> lists = new ArrayList<>();
+                for (String name : includeAll) {
+                    RecipeIdBitmap list = postings.get(normalize(name));
+                    if (list == null) return new RecipeIdBitmap();
+                    lists.add(list);
+                }
+                lists.sort(Comparator.comparingLong(RecipeIdBitmap::cardinality));
+                result = lists.get(0);
+                for (int i = 1; i < lists.size() && !result.isEmpty(); i++) result = result.and(lists.get(i));
+            }
+            if (includeAny != null && !includeAny.isEmpty()) {
+                RecipeIdBitmap any = new RecipeIdBitmap();
+                for (String name : includeAny) {
+                    RecipeIdBitmap list = postings.get(normalize(name));
+                    if (list != null) any = any.or(list);
+                }
+                result = result == null ? any : result.and(any);
+            }
+            if (result == null) result = allRecipes;
+            if (exclude != null) {
+                for (String name : exclude) {
+                    RecipeIdBitmap list = postings.get(normalize(name));
+                    if (list != null && !result.isEmpty()) result = result.andNot(list);
+                }
+            }
+            // 结果可能直接是内部的位图，复制一份再交给调用方
+            return result.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void onRecipeCreated(long recipeId, String[] ingredients) {
+        if (!loaded) return;
+        lock.writeLock().lock();
+        try {
+            allRecipes.add(recipeId);
+            if (ingredients == null) return;
+            for (String name : ingredients) {
+                if (name == null) continue;
+                postings.computeIfAbsent(normalize(name), k -> new RecipeIdBitmap()).add(recipeId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onRecipeDeleted(long recipeId, String[] ingredients) {
+        if (!loaded) return;
+        lock.writeLock().lock();
+        try {
+            allRecipes.remove(recipeId);
+            if (ingredients == null) return;
+            for (String name : ingredients) {
+                if (name == null) continue;
+                String key = normalize(name);
+                RecipeIdBitmap list = postings.get(key);
+                if (list != null && list.remove(recipeId) && list.isEmpty()) postings.remove(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 导入时按导入数据整体重建
+     */
+    public void rebuild(List<RecipeRecord> recipes) {
+        Map<String, RecipeIdBitmap> fresh = new HashMap<>();
+        RecipeIdBitmap all = new RecipeIdBitmap();
+        if (recipes != null) {
+            for (RecipeRecord r : recipes) {
+                all.add(r.getRecipeId());
+                if (r.getRecipeIngredientParts() == null) continue;
+                for (String name : r.getRecipeIngredientParts()) {
+                    if (name == null) continue;
+                    fresh.computeIfAbsent(normalize(name), k -> new RecipeIdBitmap()).add(r.getRecipeId());
+                }
+            }
+        }
+        replaceAll(fresh, all);
+        log.info("Ingredient index rebuilt from import, {} ingredients over {} recipes.", fresh.size(), all.cardinality());
+    }
+
+    /**
+     * 从 recipes / recipe_ingredients 重新加载
+     */
+    public void reload() {
+        Map<String, RecipeIdBitmap> fresh = new HashMap<>();
+        RecipeIdBitmap all = new RecipeIdBitmap();
+        try (Connection conn = connections.openPrimaryRead("ingredientIndex.reload")) {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM recipes")) {
+                stmt.setFetchSize(10000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) all.add(rs.getLong(1));
+                }
+            }
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT recipe_id, ingredient_name FROM recipe_ingredients")) {
+                stmt.setFetchSize(10000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String name = rs.getString(2);
+                        if (name == null) continue;
+                        fresh.computeIfAbsent(normalize(name), k -> new RecipeIdBitmap()).add(rs.getLong(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        replaceAll(fresh, all);
+        log.info("Ingredient index loaded from database, {} ingredients over {} recipes.", fresh.size(), all.cardinality());
+    }
+
+    /**
+     * 其他节点新建的食谱：从 recipe_ingredients 读出食材后加入索引
+     */
+    public void refreshRecipe(Connection conn, long recipeId) throws SQLException {
+        if (!loaded) return;
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT ingredient_name FROM recipe_ingredients WHERE recipe_id = ?")) {
+            stmt.setLong(1, recipeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) names.add(rs.getString(1));
+            }
+        }
+        onRecipeCreated(recipeId, names.toArray(new String[0]));
+    }
+
+    /**
+     * 其他节点删除的食谱：食材列表已随食谱删除，逐个倒排列表移除
+     */
+    public void removeRecipe(long recipeId) {
+        if (!loaded) return;
+        lock.writeLock().lock();
+        try {
+            allRecipes.remove(recipeId);
+            postings.values().removeIf(list -> list.remove(recipeId) && list.isEmpty());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 丢弃当前内容，下次查询时从数据库重新加载 (其他节点导入数据之后)
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+
+    // --- 预热快照 (WarmStartSnapshot)：全部食谱 id，食材数，之后逐个 食材名 + 食谱 id 列表 ---
+
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            WarmStartSnapshot.writeLongs(out, allRecipes.select(0, (int) allRecipes.cardinality()));
+            out.writeInt(postings.size());
+            for (Map.Entry<String, RecipeIdBitmap> e : postings.entrySet()) {
+                WarmStartSnapshot.writeString(out, e.getKey());
+                WarmStartSnapshot.writeLongs(out, e.getValue().select(0, (int) e.getValue().cardinality()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void restoreSnapshot(ByteBuffer in) {
+        RecipeIdBitmap all = new RecipeIdBitmap();
+        for (long id : WarmStartSnapshot.readLongs(in)) all.add(id);
+        int n = in.getInt();
+        Map<String, RecipeIdBitmap> fresh = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String name = WarmStartSnapshot.readString(in);
+            RecipeIdBitmap list = new RecipeIdBitmap();
+            for (long id : WarmStartSnapshot.readLongs(in)) list.add(id);
+            fresh.put(name, list);
+        }
+        replaceAll(fresh, all);
+        log.info("Ingredient index restored from warm-start snapshot, {} ingredients over {} recipes.", fresh.size(), all.cardinality());
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload();
+            }
+        }
+    }
+
+    private void replaceAll(Map<String, RecipeIdBitmap> fresh, RecipeIdBitmap all) {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            postings.putAll(fresh);
+            allRecipes = all;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,79 @@
+package io.sustc.service.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数-线性分桶延迟直方图 (HdrHistogram 的分桶方式)
+ * 以微秒计，[0, 16) 每微秒一个桶；之后每个 2 的幂区间 [2^e, 2^(e+1)) 再等分成 16 个线性子桶，
+ * 最高到 2^40 微秒 (约 12 天)，共 592 个桶。百分位取桶上界 (不超过实际最大值)，相对误差不超过 1/16，
+ * 足够区分 p99 与 p99.9 这一级的差异。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        buckets.incrementAndGet(Math.min(bucketOf(micros), BUCKETS - 1));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // 小于 16 直接对应；否则由最高位所在的 2 的幂 e 和其后 4 位组成下标
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int e = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // 桶的上界 (不含)，微秒
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket + 1;
+        int e = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (e - SUB_BITS);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0.0 : totalNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * 百分位 (0~1)，单位毫秒
+     */
+    public double percentileMillis(double p) {
+        long n = count.get();
+        if (n == 0) return 0.0;
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBoundOf(i) / 1000.0, getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+}
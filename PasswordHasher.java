@@ -0,0 +1,150 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 加盐慢哈希 (PBKDF2-HMAC-SHA256)
+ * 存储格式 pbkdf2$迭代次数$盐$哈希 (Base64)，迭代次数随格式保存，调高 sustc.password.iterations 后旧哈希仍可校验，
+ * 登录成功时由调用方按 needsRehash 升级。不是这种格式的存量值 (导入数据中的明文) 按明文做定长比较，同样在登录时升级。
+ * 计算放在独立的有界线程池里 (sustc.password.threads / queue)，同时进行的哈希数不超过线程数，
+ * 队列满时直接拒绝，不让哈希把请求线程和 CPU 全部占满。
+ */
+@Component
+@Slf4j
+public class PasswordHasher {
+
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    @Value("${sustc.password.iterations:100000}")
+    private int iterations = 100000;
+
+    @Value("${sustc.password.threads:2}")
+    private int threads = 2;
+
+    @Value("${sustc.password.queue:256}")
+    private int queueCapacity = 256;
+
+    private final SecureRandom random = new SecureRandom();
+    private ThreadPoolExecutor pool;
+
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger seq = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueCapacity, 1)),
+                r -> {
+                    Thread t = new Thread(r, "password-hasher-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /**
+     * 生成新的加盐哈希
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int iter = iterations;
+        byte[] digest = compute(password, salt, iter);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIX + iter + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(digest);
+    }
+
+    /**
+     * 校验明文密码与存储值是否匹配
+     */
+    public boolean verify(String password, String stored) {
+        if (password == null || stored == null) return false;
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[3]);
+        byte[] actual = compute(password, b64.decode(parts[2]), Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    public boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * 明文存量值或迭代次数低于当前配置时需要重新哈希
+     */
+    public boolean needsRehash(String stored) {
+        if (!isHashed(stored)) return true;
+        String[] parts = stored.split("\\$");
+        return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+    }
+
+    // 在哈希线程池上计算，请求线程只等待结果
+    private byte[] compute(String password, byte[] salt, int iter) {
+        Future<byte[]> f;
+        try {
+            f = pool.submit(() -> pbkdf2(password, salt, iter));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Password hashing overloaded");
+        }
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing password", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    private byte[] pbkdf2(String password, byte[] salt, int iter) throws GeneralSecurityException {
+        hashes.incrementAndGet();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iter, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Iterations", iterations);
+        m.put("Threads", threads);
+        m.put("Queued", pool == null ? 0 : pool.getQueue().size());
+        m.put("Hashes", hashes.get());
+        m.put("Rejected", rejected.get());
+        return m;
+    }
+}
@@ -0,0 +1,580 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.RecipeRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 食谱数值属性的堆外列式快照 (sustc.snapshot.enabled=true 时启用)
+ * 每列一个内存映射文件 (sustc.snapshot.dir 下 *.col)：id 为 long 列，营养字段和评分为 float 列 (NULL 记为 NaN)，
+ * 分类 id、食材数、存活标记为 int 列。导入时整体构建 (或首次使用时从数据库加载)，
+ * createRecipe / deleteRecipe / 评分刷新后按行打补丁，删除只清存活标记。
+ * getClosestCaloriePair / getTop3MostComplexRecipesByIngredients 和看板统计直接扫列，不再逐行走 JDBC。
+ * 扫描按块把列批量拷进堆上数组再做紧凑循环，便于 JIT 自动向量化；没有用 Vector API (仍是 incubator 模块)。
+ * 默认目录按节点区分 (tmpdir 下 sustc-snapshot-<sustc.node-id>，未配置节点 id 时用进程号)，
+ * 启动时对目录里的 .lock 加排他文件锁，拿不到锁 (另一个进程在用同一目录) 时关闭快照、回退到 SQL，
+ * 不会两个进程互相截断对方的列文件。未配置节点 id 时重启后目录不同，预热快照里的列式快照不会恢复。
+ */
+@Component
+@Slf4j
+public class RecipeColumnSnapshot {
+
+    public static final String[] FLOAT_COLUMNS = {"calories", "fat", "sugar", "protein", "carbohydrates", "sodium", "rating"};
+    private static final int CALORIES = 0;
+    private static final int RATING = 6;
+    private static final int CHUNK = 4096;
+
+    private static final String ROW_SQL = "SELECT r.id, n.calories, n.fat, n.sugar, n.protein, n.carbohydrates, n.sodium, r.aggregated_rating, r.category_id, " +
+            "(SELECT COUNT(*) FROM recipe_ingredients ri WHERE ri.recipe_id = r.id) AS ingredient_cnt " +
+            "FROM recipes r LEFT JOIN nutrition n ON r.id = n.recipe_id";
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Value("${sustc.snapshot.enabled:false}")
+    private volatile boolean enabled;
+
+    @Value("${sustc.snapshot.dir:}")
+    private String dir;
+
+    @Value("${sustc.node-id:}")
+    private String nodeId;
+
+    // 目录锁，持有到关闭
+    private FileChannel lockChannel;
+    private FileLock dirLock;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> rowOf = new HashMap<>();
+
+    private MappedByteBuffer ids;
+    private final MappedByteBuffer[] floats = new MappedByteBuffer[FLOAT_COLUMNS.length];
+    private MappedByteBuffer categories;
+    private MappedByteBuffer ingredientCounts;
+    private MappedByteBuffer live;
+    private int rows = 0;
+    private int capacity = 0;
+    private volatile boolean loaded = false;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) return;
+        if (dir == null || dir.isEmpty()) {
+            String node = nodeId == null || nodeId.isEmpty()
+                    ? ManagementFactory.getRuntimeMXBean().getName().split("@")[0]
+                    : nodeId;
+            dir = Paths.get(System.getProperty("java.io.tmpdir"), "sustc-snapshot-" + node).toString();
+        }
+        try {
+            Path base = Paths.get(dir);
+            Files.createDirectories(base);
+            lockChannel = FileChannel.open(base.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                dirLock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                dirLock = null;
+            }
+            if (dirLock == null) {
+                lockChannel.close();
+                lockChannel = null;
+                enabled = false;
+                log.warn("Recipe column snapshot directory {} is locked by another process, snapshot disabled.", dir);
+            }
+        } catch (IOException e) {
+            enabled = false;
+            log.warn("Recipe column snapshot directory {} is unusable, snapshot disabled: {}", dir, e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        try {
+            if (dirLock != null) dirLock.release();
+            if (lockChannel != null) lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Failed to release recipe column snapshot lock: {}", e.toString());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // --- 构建 ---
+
+    /**
+     * 导入时按导入数据整体构建，categoryIds 为导入时写入的分类名 -> id
+     */
+    public void rebuild(List<RecipeRecord> recipes, Map<String, Integer> categoryIds) {
+        if (!enabled) return;
+        lock.writeLock().lock();
+        try {
+            reset(recipes == null ? 0 : recipes.size());
+            if (recipes != null) {
+                for (RecipeRecord r : recipes) {
+                    Integer categoryId = r.getRecipeCategory() == null ? null : categoryIds.get(r.getRecipeCategory());
+                    append(r.getRecipeId(), values(r, r.getAggregatedRating()), categoryId,
+                            r.getRecipeIngredientParts() == null ? 0 : r.getRecipeIngredientParts().length);
+                }
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Recipe column snapshot built from import, {} recipes in {}.", rows, dir);
+    }
+
+    /**
+     * 从 recipes / nutrition / recipe_ingredients 重新加载
+     */
+    public void reload() {
+        lock.writeLock().lock();
+        try (Connection conn = connections.openPrimaryRead("columnSnapshot.reload");
+             PreparedStatement stmt = conn.prepareStatement(ROW_SQL)) {
+            stmt.setFetchSize(10000);
+            reset(0);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) readRow(rs, null);
+            }
+            loaded = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Recipe column snapshot loaded from database, {} recipes in {}.", rows, dir);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // --- 预热快照 (WarmStartSnapshot)：只记录行数，列数据本身就在映射文件里 ---
+
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            // 先把映射页刷到文件，记录的行数对应的列数据都已落盘
+            ids.force();
+            for (MappedByteBuffer col : floats) col.force();
+            categories.force();
+            ingredientCounts.force();
+            live.force();
+            out.writeInt(rows);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 重新映射已有的列文件 (不截断)，按 id 列和存活标记重建行号表；文件缺失或长度不够时返回 false
+     */
+    public boolean restoreSnapshot(ByteBuffer in) {
+        int n = in.getInt();
+        if (!enabled) return false;
+        Path idFile = Paths.get(dir).resolve("id.col");
+        try {
+            if (!Files.exists(idFile) || Files.size(idFile) < 8L * n) return false;
+        } catch (IOException e) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            remap(Math.max(n + n / 4, 1024), false);
+            rowOf.clear();
+            rows = n;
+            for (int row = 0; row < n; row++) {
+                if (live.getInt(row * 4) != 0) rowOf.put(ids.getLong(row * 8), row);
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Recipe column snapshot restored from warm-start snapshot, {} recipes in {}.", rows, dir);
+        return true;
+    }
+
+    /**
+     * 按数据库当前状态刷新一行 (其他节点的新建 / 评分变化)，食谱已不存在时标记删除
+     */
+    public void refreshRecipe(Connection conn, long recipeId) throws SQLException {
+        if (!enabled || !loaded) return;
+        try (PreparedStatement stmt = conn.prepareStatement(ROW_SQL + " WHERE r.id = ?")) {
+            stmt.setLong(1, recipeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                lock.writeLock().lock();
+                try {
+                    if (rs.next()) {
+                        readRow(rs, rowOf.get(recipeId));
+                    } else {
+                        Integer row = rowOf.remove(recipeId);
+                        if (row != null) live.putInt(row * 4, 0);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 丢弃当前内容，下次扫描时从数据库重新加载 (其他节点导入数据之后)
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+
+    // row 为 null 时追加新行，否则覆盖该行；调用方持有写锁
+    private void readRow(ResultSet rs, Integer row) throws SQLException {
+        float[] v = new float[FLOAT_COLUMNS.length];
+        for (int c = 0; c < v.length; c++) {
+            v[c] = rs.getFloat(c + 2);
+            if (rs.wasNull()) v[c] = Float.NaN;
+        }
+        int categoryId = rs.getInt("category_id");
+        Integer category = rs.wasNull() ? null : categoryId;
+        if (row == null) append(rs.getLong("id"), v, category, rs.getInt("ingredient_cnt"));
+        else write(row, rs.getLong("id"), v, category, rs.getInt("ingredient_cnt"));
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload();
+            }
+        }
+    }
+
+    // --- 写路径补丁 (提交后调用) ---
+
+    public void onRecipeCreated(long recipeId, RecipeRecord dto, Integer categoryId) {
+        if (!enabled || !loaded) return;
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOf.get(recipeId);
+            int ingredients = dto.getRecipeIngredientParts() == null ? 0 : dto.getRecipeIngredientParts().length;
+            float[] v = values(dto, Float.NaN);
+            if (row == null) {
+                append(recipeId, v, categoryId, ingredients);
+            } else {
+                write(row, recipeId, v, categoryId, ingredients);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onRecipeDeleted(long recipeId) {
+        if (!enabled || !loaded) return;
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOf.remove(recipeId);
+            if (row != null) live.putInt(row * 4, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 评分刷新后同步 aggregated_rating，rating 为 null 表示没有评论
+     */
+    public void onRatingChanged(long recipeId, Double rating) {
+        if (!enabled || !loaded) return;
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOf.get(recipeId);
+            if (row != null) floats[RATING].putFloat(row * 4, rating == null ? Float.NaN : rating.floatValue());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // --- 分析扫描 ---
+
+    /**
+     * 卡路里最接近的两个食谱，结果与 getClosestCaloriePair 的 SQL 一致 (差值最小，再按 id1、id2 升序)
+     */
+    public Map<String, Object> closestCaloriePair() {
+        ensureLoaded();
+        long[] idArr;
+        float[] cal;
+        lock.readLock().lock();
+        try {
+            int n = 0;
+            idArr = new long[rows];
+            cal = new float[rows];
+            float[] chunk = new float[CHUNK];
+            int[] alive = new int[CHUNK];
+            for (int base = 0; base < rows; base += CHUNK) {
+                int len = Math.min(CHUNK, rows - base);
+                readFloats(floats[CALORIES], base, chunk, len);
+                readInts(live, base, alive, len);
+                for (int i = 0; i < len; i++) {
+                    if (alive[i] != 0 && !Float.isNaN(chunk[i])) {
+                        idArr[n] = ids.getLong((base + i) * 8);
+                        cal[n++] = chunk[i];
+                    }
+                }
+            }
+            idArr = Arrays.copyOf(idArr, n);
+            cal = Arrays.copyOf(cal, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (idArr.length < 2) return null;
+
+        // 按卡路里排序后，差值最小的一对一定出现在相邻的两个取值之间；
+        // 同一取值 (或相邻取值) 内有多个食谱时，取各自最小的 id 组成的一对
+        Integer[] order = new Integer[idArr.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        final long[] fid = idArr;
+        final float[] fcal = cal;
+        Arrays.sort(order, (a, b) -> {
+            int c = Float.compare(fcal[a], fcal[b]);
+            return c != 0 ? c : Long.compare(fid[a], fid[b]);
+        });
+
+        float bestDiff = Float.POSITIVE_INFINITY;
+        long bestA = 0, bestB = 0;
+        float calA = 0, calB = 0;
+        int runStart = 0;
+        int prevRunStart = -1;
+        for (int i = 1; i <= order.length; i++) {
+            if (i < order.length && fcal[order[i]] == fcal[order[runStart]]) continue;
+            // [runStart, i) 是一段相同取值，段首是其中最小的 id
+            long runMin = fid[order[runStart]];
+            if (i - runStart >= 2) {
+                long other = fid[order[runStart + 1]];
+                if (better(0f, runMin, other, bestDiff, bestA, bestB)) {
+                    bestDiff = 0f;
+                    bestA = runMin;
+                    bestB = other;
+                    calA = calB = fcal[order[runStart]];
+                }
+            }
+            if (prevRunStart >= 0) {
+                float diff = Math.abs(fcal[order[runStart]] - fcal[order[prevRunStart]]);
+                long prevMin = fid[order[prevRunStart]];
+                long a = Math.min(prevMin, runMin), b = Math.max(prevMin, runMin);
+                if (better(diff, a, b, bestDiff, bestA, bestB)) {
+                    bestDiff = diff;
+                    bestA = a;
+                    bestB = b;
+                    calA = a == prevMin ? fcal[order[prevRunStart]] : fcal[order[runStart]];
+                    calB = a == prevMin ? fcal[order[runStart]] : fcal[order[prevRunStart]];
+                }
+            }
+            prevRunStart = runStart;
+            runStart = i;
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("RecipeA", bestA);
+        map.put("RecipeB", bestB);
+        map.put("CaloriesA", (double) calA);
+        map.put("CaloriesB", (double) calB);
+        map.put("Difference", (double) bestDiff);
+        return map;
+    }
+
+    private static boolean better(float diff, long a, long b, float bestDiff, long bestA, long bestB) {
+        if (diff != bestDiff) return diff < bestDiff;
+        return a != bestA ? a < bestA : b < bestB;
+    }
+
+    /**
+     * 食材数最多的前 k 个食谱 (食材数降序，id 升序)，每项为 {id, 食材数}
+     */
+    public List<long[]> topByIngredientCount(int k) {
+        ensureLoaded();
+        // 小顶堆保留当前前 k 名，堆顶是其中最差的
+        PriorityQueue<long[]> heap = new PriorityQueue<>(Math.max(k, 1),
+                (x, y) -> x[1] != y[1] ? Long.compare(x[1], y[1]) : Long.compare(y[0], x[0]));
+        lock.readLock().lock();
+        try {
+            int[] counts = new int[CHUNK];
+            int[] alive = new int[CHUNK];
+            for (int base = 0; base < rows; base += CHUNK) {
+                int len = Math.min(CHUNK, rows - base);
+                readInts(ingredientCounts, base, counts, len);
+                readInts(live, base, alive, len);
+                for (int i = 0; i < len; i++) {
+                    if (alive[i] == 0 || counts[i] == 0) continue;
+                    long[] cand = {ids.getLong((base + i) * 8), counts[i]};
+                    if (heap.size() < k) {
+                        heap.add(cand);
+                    } else if (heap.comparator().compare(cand, heap.peek()) > 0) {
+                        heap.poll();
+                        heap.add(cand);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<long[]> res = new ArrayList<>(heap);
+        res.sort((x, y) -> x[1] != y[1] ? Long.compare(y[1], x[1]) : Long.compare(x[0], y[0]));
+        return res;
+    }
+
+    /**
+     * 某个数值列 (FLOAT_COLUMNS 之一) 的统计，categoryId 为 null 时统计全部食谱；NaN 不计入
+     */
+    public Map<String, Object> summarize(String column, Integer categoryId) {
+        int c = Arrays.asList(FLOAT_COLUMNS).indexOf(column);
+        if (c < 0) throw new IllegalArgumentException("Unknown column: " + column);
+        ensureLoaded();
+
+        long count = 0;
+        double sum = 0;
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        lock.readLock().lock();
+        try {
+            float[] v = new float[CHUNK];
+            int[] alive = new int[CHUNK];
+            int[] cat = new int[CHUNK];
+            for (int base = 0; base < rows; base += CHUNK) {
+                int len = Math.min(CHUNK, rows - base);
+                readFloats(floats[c], base, v, len);
+                readInts(live, base, alive, len);
+                if (categoryId != null) {
+                    readInts(categories, base, cat, len);
+                    // 不符合条件的行置 NaN，后面的循环统一跳过
+                    for (int i = 0; i < len; i++) if (alive[i] == 0 || cat[i] != categoryId) v[i] = Float.NaN;
+                } else {
+                    for (int i = 0; i < len; i++) if (alive[i] == 0) v[i] = Float.NaN;
+                }
+                for (int i = 0; i < len; i++) {
+                    float x = v[i];
+                    if (x != x) continue; // NaN
+                    count++;
+                    sum += x;
+                    min = Math.min(min, x);
+                    max = Math.max(max, x);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, Object> res = new HashMap<>();
+        res.put("Count", count);
+        res.put("Mean", count == 0 ? null : sum / count);
+        res.put("Min", count == 0 ? null : (double) min);
+        res.put("Max", count == 0 ? null : (double) max);
+        return res;
+    }
+
+    // --- 列存储 ---
+
+    private static float[] values(RecipeRecord r, float rating) {
+        float[] v = new float[FLOAT_COLUMNS.length];
+        v[0] = r.getCalories();
+        v[1] = r.getFatContent();
+        v[2] = r.getSugarContent();
+        v[3] = r.getProteinContent();
+        v[4] = r.getCarbohydrateContent();
+        v[5] = r.getSodiumContent();
+        v[RATING] = rating;
+        return v;
+    }
+
+    private void append(long recipeId, float[] v, Integer categoryId, int ingredients) {
+        if (rows == capacity) remap(Math.max(capacity * 2, 1024), false);
+        rowOf.put(recipeId, rows);
+        write(rows, recipeId, v, categoryId, ingredients);
+        rows++;
+    }
+
+    private void write(int row, long recipeId, float[] v, Integer categoryId, int ingredients) {
+        ids.putLong(row * 8, recipeId);
+        for (int c = 0; c < v.length; c++) floats[c].putFloat(row * 4, v[c]);
+        categories.putInt(row * 4, categoryId == null ? 0 : categoryId);
+        ingredientCounts.putInt(row * 4, ingredients);
+        live.putInt(row * 4, 1);
+    }
+
+    private static void readFloats(MappedByteBuffer col, int base, float[] dst, int len) {
+        col.asFloatBuffer().position(base).get(dst, 0, len);
+    }
+
+    private static void readInts(MappedByteBuffer col, int base, int[] dst, int len) {
+        col.asIntBuffer().position(base).get(dst, 0, len);
+    }
+
+    private void reset(int expected) {
+        rowOf.clear();
+        rows = 0;
+        remap(Math.max(expected + expected / 4, 1024), true);
+    }
+
+    // 扩容时映射更大的区域，文件随之变长，已有数据保留
+    private void remap(int newCapacity, boolean truncate) {
+        try {
+            Path base = Paths.get(dir);
+            Files.createDirectories(base);
+            ids = map(base.resolve("id.col"), 8L * newCapacity, truncate);
+            for (int c = 0; c < FLOAT_COLUMNS.length; c++) {
+                floats[c] = map(base.resolve(FLOAT_COLUMNS[c] + ".col"), 4L * newCapacity, truncate);
+            }
+            categories = map(base.resolve("category_id.col"), 4L * newCapacity, truncate);
+            ingredientCounts = map(base.resolve("ingredient_count.col"), 4L * newCapacity, truncate);
+            live = map(base.resolve("live.col"), 4L * newCapacity, truncate);
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, long bytes, boolean truncate) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (truncate) options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        // 映射在通道关闭后依然有效
+        try (FileChannel ch = FileChannel.open(file, options)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            buf.order(ByteOrder.nativeOrder());
+            return buf;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("Loaded", loaded);
+        lock.readLock().lock();
+        try {
+            m.put("Rows", rows);
+            m.put("LiveRows", rowOf.size());
+            m.put("Capacity", capacity);
+        } finally {
+            lock.readLock().unlock();
+        }
+        m.put("Dir", dir);
+        return m;
+    }
+}
@@ -0,0 +1,327 @@
+package io.sustc.service.impl;
+
+import java.util.Arrays;
+
+/**
+ * 压缩的食谱 id 位图 (Roaring 风格)
+ * id 的高 16 位选容器，低 16 位存在容器里：元素不超过 4096 个时用有序 char 数组，否则用 1024 个 long 的定长位图，
+ * 稀疏和稠密的倒排列表都很省内存，交 / 并 / 差按容器逐个做，位图容器之间是按字的位运算。
+ * add / remove 原地修改，and / or / andNot 返回新位图，不改动参数。
+ */
+public class RecipeIdBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    // 单个高 16 位对应的容器，bits == null 时使用 array 的前 cardinality 个元素
+    private static final class Container {
+        char[] array;
+        long[] bits;
+        int cardinality;
+
+        static Container ofArray(char[] array, int cardinality) {
+            Container c = new Container();
+            c.array = array;
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        static Container ofBits(long[] bits, int cardinality) {
+            Container c = new Container();
+            c.bits = bits;
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        boolean contains(char v) {
+            if (bits != null) return (bits[v >>> 6] & (1L << v)) != 0;
+            return Arrays.binarySearch(array, 0, cardinality, v) >= 0;
+        }
+
+        boolean add(char v) {
+            if (bits != null) {
+                long old = bits[v >>> 6];
+                bits[v >>> 6] = old | (1L << v);
+                if (old == bits[v >>> 6]) return false;
+                cardinality++;
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i >= 0) return false;
+            i = -i - 1;
+            if (cardinality == ARRAY_MAX) {
+                toBits();
+                return add(v);
+            }
+            if (cardinality == array.length) array = Arrays.copyOf(array, Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX));
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = v;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char v) {
+            if (bits != null) {
+                long old = bits[v >>> 6];
+                bits[v >>> 6] = old & ~(1L << v);
+                if (old == bits[v >>> 6]) return false;
+                if (--cardinality <= ARRAY_MAX) toArray();
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i < 0) return false;
+            System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+            cardinality--;
+            return true;
+        }
+
+        long[] bitsView() {
+            if (bits != null) return bits;
+            long[] b = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) b[array[i] >>> 6] |= 1L << array[i];
+            return b;
+        }
+
+        private void toBits() {
+            bits = bitsView();
+            array = null;
+        }
+
+        private void toArray() {
+            array = values(bits, cardinality);
+            bits = null;
+        }
+
+        Container copy() {
+            return bits != null ? ofBits(bits.clone(), cardinality) : ofArray(Arrays.copyOf(array, cardinality), cardinality);
+        }
+
+        // 位运算结果按基数选择表示
+        static Container fromBits(long[] bits) {
+            int n = 0;
+            for (long w : bits) n += Long.bitCount(w);
+            if (n == 0) return null;
+            return n > ARRAY_MAX ? ofBits(bits, n) : ofArray(values(bits, n), n);
+        }
+
+        static char[] values(long[] bits, int n) {
+            char[] out = new char[n];
+            int k = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    out[k++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return out;
+        }
+
+        static Container and(Container a, Container b) {
+            if (a.bits != null && b.bits != null) {
+                long[] r = new long[WORDS];
+                for (int i = 0; i < WORDS; i++) r[i] = a.bits[i] & b.bits[i];
+                return fromBits(r);
+            }
+            // 至少一侧是数组：遍历数组一侧做成员判断
+            Container small = a.bits == null ? a : b;
+            Container other = small == a ? b : a;
+            char[] out = new char[small.cardinality];
+            int n = 0;
+            for (int i = 0; i < small.cardinality; i++) {
+                if (other.contains(small.array[i])) out[n++] = small.array[i];
+            }
+            return n == 0 ? null : ofArray(out, n);
+        }
+
+        static Container or(Container a, Container b) {
+            if (a.bits == null && b.bits == null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+                char[] out = new char[a.cardinality + b.cardinality];
+                int i = 0, j = 0, n = 0;
+                while (i < a.cardinality && j < b.cardinality) {
+                    char x = a.array[i], y = b.array[j];
+                    if (x < y) { out[n++] = x; i++; }
+                    else if (x > y) { out[n++] = y; j++; }
+                    else { out[n++] = x; i++; j++; }
+                }
+                while (i < a.cardinality) out[n++] = a.array[i++];
+                while (j < b.cardinality) out[n++] = b.array[j++];
+                return ofArray(out, n);
+            }
+            long[] r = a.bits != null ? a.bits.clone() : a.bitsView();
+            if (b.bits != null) {
+                for (int i = 0; i < WORDS; i++) r[i] |= b.bits[i];
+            } else {
+                for (int i = 0; i < b.cardinality; i++) r[b.array[i] >>> 6] |= 1L << b.array[i];
+            }
+            return fromBits(r);
+        }
+
+        static Container andNot(Container a, Container b) {
+            if (a.bits == null) {
+                char[] out = new char[a.cardinality];
+                int n = 0;
+                for (int i = 0; i < a.cardinality; i++) {
+                    if (!b.contains(a.array[i])) out[n++] = a.array[i];
+                }
+                return n == 0 ? null : ofArray(out, n);
+            }
+            long[] r = a.bits.clone();
+            if (b.bits != null) {
+                for (int i = 0; i < WORDS; i++) r[i] &= ~b.bits[i];
+            } else {
+                for (int i = 0; i < b.cardinality; i++) r[b.array[i] >>> 6] &= ~(1L << b.array[i]);
+            }
+            return fromBits(r);
+        }
+    }
+
+    public boolean add(long id) {
+        char key = key(id);
+        int i = indexOf(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertAt(i, key, Container.ofArray(new char[4], 0));
+        }
+        return containers[i].add((char) id);
+    }
+
+    public boolean remove(long id) {
+        int i = indexOf(key(id));
+        if (i < 0) return false;
+        boolean removed = containers[i].remove((char) id);
+        if (containers[i].cardinality == 0) removeAt(i);
+        return removed;
+    }
+
+    public boolean contains(long id) {
+        if (id < 0 || id > 0xFFFFFFFFL) return false;
+        int i = indexOf((char) (id >>> 16));
+        return i >= 0 && containers[i].contains((char) id);
+    }
+
+    public long cardinality() {
+        long n = 0;
+        for (int i = 0; i < size; i++) n += containers[i].cardinality;
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public RecipeIdBitmap copy() {
+        RecipeIdBitmap r = new RecipeIdBitmap();
+        r.keys = Arrays.copyOf(keys, Math.max(size, 4));
+        r.containers = new Container[r.keys.length];
+        for (int i = 0; i < size; i++) r.containers[i] = containers[i].copy();
+        r.size = size;
+        return r;
+    }
+
+    public RecipeIdBitmap and(RecipeIdBitmap other) {
+        RecipeIdBitmap r = new RecipeIdBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else {
+                r.append(keys[i], Container.and(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    public RecipeIdBitmap or(RecipeIdBitmap other) {
+        RecipeIdBitmap r = new RecipeIdBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                r.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > other.keys[j]) {
+                r.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                r.append(keys[i], Container.or(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    public RecipeIdBitmap andNot(RecipeIdBitmap other) {
+        RecipeIdBitmap r = new RecipeIdBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) j++;
+            if (j < other.size && other.keys[j] == keys[i]) {
+                r.append(keys[i], Container.andNot(containers[i], other.containers[j]));
+            } else {
+                r.append(keys[i], containers[i].copy());
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 按 id 升序跳过 offset 个后取最多 limit 个，用于分页
+     */
+    public long[] select(long offset, int limit) {
+        long[] out = new long[(int) Math.max(Math.min(limit, cardinality() - offset), 0)];
+        int n = 0;
+        long skip = offset;
+        for (int i = 0; i < size && n < out.length; i++) {
+            Container c = containers[i];
+            if (skip >= c.cardinality) {
+                skip -= c.cardinality;
+                continue;
+            }
+            long high = (long) keys[i] << 16;
+            char[] values = c.bits != null ? Container.values(c.bits, c.cardinality) : c.array;
+            for (int k = (int) skip; k < c.cardinality && n < out.length; k++) out[n++] = high | values[k];
+            skip = 0;
+        }
+        return out;
+    }
+
+    private static char key(long id) {
+        if (id < 0 || id > 0xFFFFFFFFL) throw new IllegalArgumentException("Recipe id out of range: " + id);
+        return (char) (id >>> 16);
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    // 只在按 key 升序构造结果时使用
+    private void append(char key, Container c) {
+        if (c == null || c.cardinality == 0) return;
+        insertAt(size, key, c);
+    }
+
+    private void insertAt(int i, char key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        containers[--size] = null;
+    }
+}
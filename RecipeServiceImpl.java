@@ -8,25 +8,59 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
 public class RecipeServiceImpl implements RecipeService {
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionContext connections;
+
+    @Autowired
+    private StatementShapes shapes;
+
+    @Autowired
+    private AsyncServiceExecutor asyncExecutor;
+
+    @Autowired
+    private IngredientIndex ingredientIndex;
+
+    @Autowired
+    private CategoryDictionary categoryDictionary;
+
+    @Autowired
+    private AnalyticsRollups rollups;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private Authenticator authenticator;
+
+    @Autowired
+    private SimilarRecipeIndex similarIndex;
 
     @Override
     public String getNameFromID(long id) {
         String sql = "SELECT name FROM recipes WHERE id = ?";
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.openReadOnly("getNameFromID");
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -40,13 +74,19 @@ public class RecipeServiceImpl implements RecipeService {
 
     @Override
     public RecipeRecord getRecipeById(long recipeId) {
-        String sql = "SELECT r.*, u.name as author_name, n.* " +
+        return getRecipeById(recipeId, null);
+    }
+
+    /**
+     * 同 getRecipeById，auth 为请求方 (可为 null，不校验密码)：声明的用户刚写过时读主库，保证读到自己的修改
+     */
+    public RecipeRecord getRecipeById(long recipeId, AuthInfo auth) {
+        String sql = "SELECT r.*, n.* " +
                 "FROM recipes r " +
-                "JOIN users u ON r.owner_id = u.id " +
                 "LEFT JOIN nutrition n ON r.id = n.recipe_id " +
                 "WHERE r.id = ?";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.openReadOnly("getRecipeById", claimedId(auth));
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, recipeId);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -62,90 +102,201 @@ public class RecipeServiceImpl implements RecipeService {
 
     @Override
     public PageResult<RecipeRecord> searchRecipes(String keyword, String category, Double minRating, Integer page, Integer size, String sort) {
-        StringBuilder sql = new StringBuilder(
-                "SELECT r.*, u.name as author_name, n.* " +
-                        "FROM recipes r " +
-                        "JOIN users u ON r.owner_id = u.id " +
-                        "LEFT JOIN nutrition n ON r.id = n.recipe_id " +
-                        "WHERE 1=1 "
-        );
+        return searchRecipes(keyword, category, minRating, Collections.emptyList(), page, size, sort);
+    }
+
+    /**
+     * 带营养范围筛选的搜索，ranges 中每一项限定一个营养字段的上下界 (闭区间，null 表示不限)；
+     * sort 除 rating_desc / date_desc 外还支持任意营养字段的 &lt;field&gt;_asc / &lt;field&gt;_desc
+     */
+    public PageResult<RecipeRecord> searchRecipes(String keyword, String category, Double minRating, List<NutritionRange> ranges,
+                                                  Integer page, Integer size, String sort) {
+        return search(keyword, category, minRating, ranges, page, size, sort, false).getPage();
+    }
 
+    /**
+     * 搜索并返回分类分面：每个分类在除分类以外的筛选条件下的命中数。
+     * 分面计数用一条 GROUP BY category_id 代替原来的 COUNT(*)，总数由分面计数得出，查询次数不变
+     */
+    public FacetedResult searchRecipesWithFacets(String keyword, String category, Double minRating, List<NutritionRange> ranges,
+                                                 Integer page, Integer size, String sort) {
+        return search(keyword, category, minRating, ranges, page, size, sort, true);
+    }
+
+    private FacetedResult search(String keyword, String category, Double minRating, List<NutritionRange> ranges,
+                                 Integer page, Integer size, String sort, boolean withFacets) {
+        // 按筛选条件组合成掩码，每个 (掩码, 排序) 对应注册表里一个固定的语句形状
+        int mask = 0;
         List<Object> args = new ArrayList<>();
+        int categoryArg = -1;
 
         if (keyword != null && !keyword.isEmpty()) {
-            sql.append("AND (r.name ILIKE ? OR r.description ILIKE ?) ");
+            mask |= SEARCH_KEYWORD;
             args.add("%" + keyword + "%");
             args.add("%" + keyword + "%");
         }
         if (category != null && !category.isEmpty()) {
-            sql.append("AND r.category = ? ");
-            args.add(category);
+            mask |= SEARCH_CATEGORY;
+            categoryArg = args.size();
+            args.add(null); // 分类 id 拿到连接后再查
         }
         if (minRating != null) {
-            sql.append("AND r.aggregated_rating >= ? ");
+            mask |= SEARCH_MIN_RATING;
             args.add(minRating);
         }
+        // 营养范围按字段顺序追加，同一字段多次出现时取交集；
+        // 有范围的字段总是绑定上下界两个参数 (缺的一侧用 ±Infinity)，形状只取决于哪些字段有范围
+        Double[] lower = new Double[NUTRITION_FIELDS.length];
+        Double[] upper = new Double[NUTRITION_FIELDS.length];
+        if (ranges != null) {
+            for (NutritionRange range : ranges) {
+                int f = nutritionField(range.getField());
+                if (range.getMin() != null) lower[f] = lower[f] == null ? range.getMin() : Math.max(lower[f], range.getMin());
+                if (range.getMax() != null) upper[f] = upper[f] == null ? range.getMax() : Math.min(upper[f], range.getMax());
+            }
+        }
+        for (int f = 0; f < NUTRITION_FIELDS.length; f++) {
+            if (lower[f] == null && upper[f] == null) continue;
+            mask |= nutritionBit(f);
+            args.add(lower[f] == null ? Double.NEGATIVE_INFINITY : lower[f]);
+            args.add(upper[f] == null ? Double.POSITIVE_INFINITY : upper[f]);
+        }
+        int countArgs = args.size();
+
+        String sortKey = searchSortKey(sort);
+        int filters = mask;
+        int facetFilters = mask & ~SEARCH_CATEGORY;
+        StatementShapes.Shape countShape = withFacets
+                ? shapes.get("searchRecipes.facets#" + facetFilters,
+                        () -> "SELECT r.category_id, COUNT(*) " + searchFromWhere(facetFilters) + "GROUP BY r.category_id")
+                : shapes.get("searchRecipes.count#" + filters,
+                        () -> "SELECT COUNT(*) " + searchFromWhere(filters));
+        StatementShapes.Shape pageShape = shapes.get("searchRecipes.page#" + filters + "#" + sortKey,
+                () -> "SELECT r.*, n.* " + searchFromWhere(filters) +
+                        searchOrderBy(sortKey) + "LIMIT ? OFFSET ?");
+
+        args.add(size);
+        args.add((page - 1) * size);
 
         long total = 0;
-        String countSql = "SELECT COUNT(*) " + sql.substring(sql.indexOf("FROM"));
+        List<RecipeRecord> list = new ArrayList<>();
+        Map<String, Long> facets = new LinkedHashMap<>();
+        // count 和分页查询共用同一个连接
+        try (Connection conn = connections.openReadOnly("searchRecipes")) {
+            Integer categoryId = null;
+            if (categoryArg >= 0) {
+                // 未知分类用 -1，不匹配任何食谱；分面计数里 -1 不会与任何分类 (包括未分类的 NULL 组) 相等
+                categoryId = categoryDictionary.lookup(conn, category);
+                args.set(categoryArg, categoryId == null ? -1 : categoryId);
+            }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(countSql)) {
-            for (int i = 0; i < args.size(); i++) stmt.setObject(i + 1, args.get(i));
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) total = rs.getLong(1);
+            try (PreparedStatement stmt = shapes.prepare(conn, countShape)) {
+                int k = 1;
+                for (int i = 0; i < countArgs; i++) {
+                    if (withFacets && i == categoryArg) continue;
+                    stmt.setObject(k++, args.get(i));
+                }
+                long start = System.nanoTime();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (withFacets) {
+                        List<long[]> counts = new ArrayList<>();
+                        while (rs.next()) {
+                            int id = rs.getInt(1);
+                            boolean uncategorized = rs.wasNull();
+                            long n = rs.getLong(2);
+                            if (categoryArg < 0 || categoryId != null && !uncategorized && id == categoryId) total += n;
+                            if (!uncategorized) counts.add(new long[]{id, n});
+                        }
+                        counts.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+                        for (long[] c : counts) {
+                            // 字典里查不到名字的分类 (刚被其他节点改动) 不出现在分面里，避免 null 键合并计数
+                            String name = categoryDictionary.nameOf(conn, (int) c[0]);
+                            if (name != null) facets.put(name, c[1]);
+                        }
+                    } else if (rs.next()) {
+                        total = rs.getLong(1);
+                    }
+                }
+                countShape.recordSince(start);
+            }
+
+            if (total > 0) {
+                try (PreparedStatement stmt = shapes.prepare(conn, pageShape)) {
+                    for (int i = 0; i < args.size(); i++) stmt.setObject(i + 1, args.get(i));
+                    long start = System.nanoTime();
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            list.add(mapRecipeColumns(rs));
+                        }
+                    }
+                    pageShape.recordSince(start);
+                }
+                // 一页的食材和作者名各一次查完
+                fillIngredients(conn, list);
+                fillAuthorNames(conn, list);
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
 
-        if (sort != null) {
-            switch (sort) {
-                case "rating_desc": sql.append("ORDER BY r.aggregated_rating DESC NULLS LAST, r.id ASC "); break;
-                case "date_desc": sql.append("ORDER BY r.create_time DESC, r.id ASC "); break;
-                case "calories_asc": sql.append("ORDER BY r.calories ASC NULLS LAST, r.id ASC "); break;
-                default: sql.append("ORDER BY r.id ASC ");
-            }
-        } else {
-            sql.append("ORDER BY r.id ASC ");
-        }
+        // 【核心修复点】：这里传入 items, page, size, total 四个参数
+        return new FacetedResult(new PageResult<>(list, page, size, total), facets);
+    }
 
-        sql.append("LIMIT ? OFFSET ?");
-        args.add(size);
-        args.add((page - 1) * size);
+    /**
+     * 批量获取食谱 (含营养、食材和作者名)，固定两次查询；结果按请求顺序返回，不存在的 id 对应 null
+     */
+    public List<RecipeRecord> getRecipesByIds(long[] recipeIds) {
+        return getRecipesByIds(recipeIds, null);
+    }
 
-        List<RecipeRecord> list = new ArrayList<>();
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-            for (int i = 0; i < args.size(); i++) stmt.setObject(i + 1, args.get(i));
+    /**
+     * 同 getRecipesByIds，按请求方 auth 做 read-your-writes 路由
+     */
+    public List<RecipeRecord> getRecipesByIds(long[] recipeIds, AuthInfo auth) {
+        List<RecipeRecord> result = new ArrayList<>();
+        if (recipeIds == null || recipeIds.length == 0) return result;
+
+        String sql = "SELECT r.*, n.* " +
+                "FROM recipes r " +
+                "LEFT JOIN nutrition n ON r.id = n.recipe_id " +
+                "WHERE r.id = ANY (?)";
+
+        Map<Long, RecipeRecord> found = new HashMap<>();
+        try (Connection conn = connections.openReadOnly("getRecipesByIds", claimedId(auth));
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("bigint", boxed(recipeIds)));
+            List<RecipeRecord> rows = new ArrayList<>();
             try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    list.add(mapResultSetToRecipe(conn, rs));
-                }
+                while (rs.next()) rows.add(mapRecipeColumns(rs));
             }
+            fillIngredients(conn, rows);
+            fillAuthorNames(conn, rows);
+            for (RecipeRecord r : rows) found.put(r.getRecipeId(), r);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
 
-        // 【核心修复点】：这里传入 items, page, size, total 四个参数
-        return new PageResult<>(list, page, size, total);
+        for (long id : recipeIds) result.add(found.get(id));
+        return result;
     }
 
     @Override
     public long createRecipe(RecipeRecord dto, AuthInfo auth) {
-        long userId = authenticate(auth);
-
-        String sqlRecipe = "INSERT INTO recipes (owner_id, name, description, category, cook_time, prep_time, create_time, difficulty, calories) " +
-                "VALUES (?, ?, ?, ?, ?, ?, NOW(), 1, ?) RETURNING id";
+        String sqlRecipe = "INSERT INTO recipes (owner_id, name, description, category, cook_time, prep_time, create_time, difficulty, calories, category_id) " +
+                "VALUES (?, ?, ?, ?, ?, ?, NOW(), 1, ?, ?) RETURNING id";
 
-        String sqlNutrition = "INSERT INTO nutrition (recipe_id, calories, fat, sugar, protein, carbohydrates) VALUES (?, ?, ?, ?, ?, ?)";
+        String sqlNutrition = "INSERT INTO nutrition (recipe_id, calories, fat, sugar, protein, carbohydrates, sodium) VALUES (?, ?, ?, ?, ?, ?, ?)";
 
         String sqlIngred = "INSERT INTO recipe_ingredients (recipe_id, ingredient_name, amount) VALUES (?, ?, '1 unit')";
 
-        try (Connection conn = dataSource.getConnection()) {
+        long userId = authenticate(auth);
+        try (Connection conn = connections.open("createRecipe")) {
+            connections.bindUser(userId);
             conn.setAutoCommit(false);
             try {
                 long recipeId;
+                Integer categoryId = dto.getRecipeCategory() == null ? null : categoryDictionary.getOrCreate(conn, dto.getRecipeCategory());
                 try (PreparedStatement stmt = conn.prepareStatement(sqlRecipe)) {
                     stmt.setLong(1, userId);
                     stmt.setString(2, dto.getName());
@@ -154,6 +305,8 @@ public class RecipeServiceImpl implements RecipeService {
                     stmt.setString(5, dto.getCookTime());
                     stmt.setString(6, dto.getPrepTime());
                     stmt.setFloat(7, dto.getCalories());
+                    if (categoryId != null) stmt.setInt(8, categoryId);
+                    else stmt.setNull(8, Types.INTEGER);
 
                     try (ResultSet rs = stmt.executeQuery()) {
                         if (rs.next()) recipeId = rs.getLong(1);
@@ -168,6 +321,7 @@ public class RecipeServiceImpl implements RecipeService {
                     stmt.setFloat(4, dto.getSugarContent());
                     stmt.setFloat(5, dto.getProteinContent());
                     stmt.setFloat(6, dto.getCarbohydrateContent());
+                    stmt.setFloat(7, dto.getSodiumContent());
                     stmt.executeUpdate();
                 }
 
@@ -182,9 +336,16 @@ public class RecipeServiceImpl implements RecipeService {
                     }
                 }
 
+                rollups.onRecipe(conn, recipeId, 1);
+                changeFeed.publish(conn, ChangeFeed.RECIPE_CREATED, recipeId);
                 conn.commit();
+                if (categoryId != null) categoryDictionary.onCreated(categoryId, dto.getRecipeCategory());
+                ingredientIndex.onRecipeCreated(recipeId, dto.getRecipeIngredientParts());
+                columnSnapshot.onRecipeCreated(recipeId, dto, categoryId);
+                similarIndex.onRecipeCreated(recipeId, dto.getRecipeIngredientParts());
                 return recipeId;
             } catch (Exception e) {
+                connections.markFailed();
                 conn.rollback();
                 throw e;
             }
@@ -196,7 +357,8 @@ public class RecipeServiceImpl implements RecipeService {
     @Override
     public void deleteRecipe(long recipeId, AuthInfo auth) {
         long userId = authenticate(auth);
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.open("deleteRecipe")) {
+            connections.bindUser(userId);
             conn.setAutoCommit(false);
             try {
                 try (PreparedStatement stmt = conn.prepareStatement("SELECT owner_id FROM recipes WHERE id = ?")) {
@@ -207,14 +369,23 @@ public class RecipeServiceImpl implements RecipeService {
                     }
                 }
 
+                // 倒排索引在提交后按删除前的食材列表更新
+                String[] ingredients = fetchIngredients(conn, recipeId);
+                rollups.onRecipe(conn, recipeId, -1);
+                rollups.onRecipeReviewsDeleted(conn, recipeId);
                 execute(conn, "DELETE FROM review_likes WHERE review_id IN (SELECT id FROM reviews WHERE recipe_id = ?)", recipeId);
                 execute(conn, "DELETE FROM reviews WHERE recipe_id = ?", recipeId);
                 execute(conn, "DELETE FROM recipe_ingredients WHERE recipe_id = ?", recipeId);
                 execute(conn, "DELETE FROM nutrition WHERE recipe_id = ?", recipeId);
                 execute(conn, "DELETE FROM recipes WHERE id = ?", recipeId);
+                changeFeed.publish(conn, ChangeFeed.RECIPE_DELETED, recipeId);
 
                 conn.commit();
+                ingredientIndex.onRecipeDeleted(recipeId, ingredients);
+                columnSnapshot.onRecipeDeleted(recipeId);
+                similarIndex.onRecipeDeleted(recipeId);
             } catch (Exception e) {
+                connections.markFailed();
                 conn.rollback();
                 throw e;
             }
@@ -225,21 +396,33 @@ public class RecipeServiceImpl implements RecipeService {
 
     @Override
     public void updateTimes(AuthInfo auth, long recipeId, String cookTimeIso, String prepTimeIso) {
-        long userId = authenticate(auth);
         try {
             if (cookTimeIso != null) Duration.parse(cookTimeIso);
             if (prepTimeIso != null) Duration.parse(prepTimeIso);
         } catch (Exception e) { throw new IllegalArgumentException("Invalid ISO format"); }
 
         String sql = "UPDATE recipes SET cook_time = COALESCE(?, cook_time), prep_time = COALESCE(?, prep_time) WHERE id = ? AND owner_id = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, cookTimeIso);
-            stmt.setString(2, prepTimeIso);
-            stmt.setLong(3, recipeId);
-            stmt.setLong(4, userId);
-            if (stmt.executeUpdate() == 0) {
-                throw new SecurityException("Update failed: Not owner or recipe not found");
+        long userId = authenticate(auth);
+        try (Connection conn = connections.open("updateTimes")) {
+            connections.bindUser(userId);
+            // 修改与变更事件同事务提交
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, cookTimeIso);
+                    stmt.setString(2, prepTimeIso);
+                    stmt.setLong(3, recipeId);
+                    stmt.setLong(4, userId);
+                    if (stmt.executeUpdate() == 0) {
+                        throw new SecurityException("Update failed: Not owner or recipe not found");
+                    }
+                }
+                changeFeed.publish(conn, ChangeFeed.RECIPE_UPDATED, recipeId);
+                conn.commit();
+            } catch (Exception e) {
+                connections.markFailed();
+                conn.rollback();
+                throw e;
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -248,12 +431,14 @@ public class RecipeServiceImpl implements RecipeService {
 
     @Override
     public Map<String, Object> getClosestCaloriePair() {
+        if (columnSnapshot.isEnabled()) return columnSnapshot.closestCaloriePair();
+
         String sql = "SELECT n1.recipe_id as id1, n2.recipe_id as id2, n1.calories as cal1, n2.calories as cal2, " +
                 "ABS(n1.calories - n2.calories) as diff " +
                 "FROM nutrition n1 JOIN nutrition n2 ON n1.recipe_id < n2.recipe_id " +
                 "ORDER BY diff ASC, id1 ASC, id2 ASC LIMIT 1";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.openReadOnly("getClosestCaloriePair");
              PreparedStatement stmt = conn.prepareStatement(sql);
              ResultSet rs = stmt.executeQuery()) {
             if (rs.next()) {
@@ -271,12 +456,14 @@ public class RecipeServiceImpl implements RecipeService {
 
     @Override
     public List<Map<String, Object>> getTop3MostComplexRecipesByIngredients() {
+        if (columnSnapshot.isEnabled()) return top3FromSnapshot();
+
         String sql = "SELECT r.id, r.name, COUNT(*) as cnt " +
                 "FROM recipes r JOIN recipe_ingredients ri ON r.id = ri.recipe_id " +
                 "GROUP BY r.id, r.name " +
                 "ORDER BY cnt DESC, r.id ASC LIMIT 3";
         List<Map<String, Object>> list = new ArrayList<>();
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.openReadOnly("getTop3MostComplexRecipesByIngredients");
              PreparedStatement stmt = conn.prepareStatement(sql);
              ResultSet rs = stmt.executeQuery()) {
             while (rs.next()) {
@@ -290,7 +477,217 @@ public class RecipeServiceImpl implements RecipeService {
         return list;
     }
 
+    // 快照只有数值列，名字按 id 回表取一次
+    private List<Map<String, Object>> top3FromSnapshot() {
+        List<long[]> top = columnSnapshot.topByIngredientCount(3);
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (top.isEmpty()) return list;
+        Long[] ids = new Long[top.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = top.get(i)[0];
+        Map<Long, String> names = fetchNames("getTop3MostComplexRecipesByIngredients", ids);
+        for (long[] t : top) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("RecipeId", t[0]);
+            map.put("Name", names.get(t[0]));
+            map.put("IngredientCount", (int) t[1]);
+            list.add(map);
+        }
+        return list;
+    }
+
+    /**
+     * 食材最相近的 k 个食谱 (RecipeId、Name、Similarity)，按 MinHash 估计的 Jaccard 相似度降序。
+     * 需要开启 sustc.similar.enabled；食谱不存在或没有食材时返回空列表
+     */
+    public List<Map<String, Object>> similarRecipes(long recipeId, int k) {
+        if (!similarIndex.isEnabled()) throw new IllegalStateException("Similar-recipe index is disabled");
+        List<SimilarRecipeIndex.Match> matches = similarIndex.similar(recipeId, k);
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (matches.isEmpty()) return list;
+        Long[] ids = new Long[matches.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = matches.get(i).getRecipeId();
+        Map<Long, String> names = fetchNames("similarRecipes", ids);
+        for (SimilarRecipeIndex.Match m : matches) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("RecipeId", m.getRecipeId());
+            map.put("Name", names.get(m.getRecipeId()));
+            map.put("Similarity", m.getSimilarity());
+            list.add(map);
+        }
+        return list;
+    }
+
+    private Map<Long, String> fetchNames(String operation, Long[] ids) {
+        Map<Long, String> names = new HashMap<>();
+        try (Connection conn = connections.openReadOnly(operation);
+             PreparedStatement stmt = conn.prepareStatement("SELECT id, name FROM recipes WHERE id = ANY (?)")) {
+            stmt.setArray(1, conn.createArrayOf("bigint", ids));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) names.put(rs.getLong(1), rs.getString(2));
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return names;
+    }
+
+    /**
+     * 某个营养字段 / 评分的统计 (Count、Mean、Min、Max)，categoryName 为 null 时统计全部食谱。
+     * 需要开启列式快照 (sustc.snapshot.enabled)
+     */
+    public Map<String, Object> summarizeNutrition(String field, String categoryName) {
+        if (!columnSnapshot.isEnabled()) throw new IllegalStateException("Column snapshot is disabled");
+        Integer categoryId = null;
+        if (categoryName != null) {
+            try (Connection conn = connections.openReadOnly("summarizeNutrition")) {
+                categoryId = categoryDictionary.lookup(conn, categoryName);
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            if (categoryId == null) categoryId = -1;
+        }
+        return columnSnapshot.summarize(field, categoryId);
+    }
+
+    /**
+     * 按食材搜索：包含 includeAll 中全部食材、至少包含 includeAny 中一种、且不含 exclude 中任何一种，按 id 升序分页。
+     * 候选集由 IngredientIndex 在内存中求出，只有当前页的食谱回表查询
+     */
+    public PageResult<RecipeRecord> searchByIngredients(List<String> includeAll, List<String> includeAny, List<String> exclude,
+                                                        Integer page, Integer size) {
+        if (page == null || page < 1 || size == null || size < 1) throw new IllegalArgumentException("Invalid page or size");
+        RecipeIdBitmap matches = ingredientIndex.query(includeAll, includeAny, exclude);
+        long[] ids = matches.select((long) (page - 1) * size, size);
+
+        List<RecipeRecord> list = new ArrayList<>();
+        for (RecipeRecord r : getRecipesByIds(ids)) {
+            if (r != null) list.add(r);
+        }
+        return new PageResult<>(list, page, size, matches.cardinality());
+    }
+
+    // --- Async 版本：虚拟线程执行，并发度受连接池大小限制 ---
+
+    public CompletableFuture<RecipeRecord> getRecipeByIdAsync(long recipeId) {
+        return asyncExecutor.submit(() -> getRecipeById(recipeId));
+    }
+
+    public CompletableFuture<PageResult<RecipeRecord>> searchRecipesAsync(String keyword, String category, Double minRating, Integer page, Integer size, String sort) {
+        return asyncExecutor.submit(() -> searchRecipes(keyword, category, minRating, page, size, sort));
+    }
+
+    // --- searchRecipes 语句形状 ---
+
+    private static final int SEARCH_KEYWORD = 1;
+    private static final int SEARCH_CATEGORY = 1 << 1;
+    private static final int SEARCH_MIN_RATING = 1 << 2;
+
+    // nutrition 表上可筛选 / 排序的列，第 f 个字段有范围条件时置掩码的第 3+f 位
+    private static final String[] NUTRITION_FIELDS = {"calories", "fat", "sugar", "protein", "carbohydrates", "sodium"};
+
+    private static int nutritionBit(int f) {
+        return 1 << (3 + f);
+    }
+
+    private static int nutritionField(String field) {
+        for (int f = 0; f < NUTRITION_FIELDS.length; f++) {
+            if (NUTRITION_FIELDS[f].equalsIgnoreCase(field)) return f;
+        }
+        throw new IllegalArgumentException("Unknown nutrition field: " + field);
+    }
+
+    /**
+     * 搜索结果及分类分面计数 (按命中数降序)
+     */
+    public static final class FacetedResult {
+        private final PageResult<RecipeRecord> page;
+        private final Map<String, Long> categoryCounts;
+
+        public FacetedResult(PageResult<RecipeRecord> page, Map<String, Long> categoryCounts) {
+            this.page = page;
+            this.categoryCounts = categoryCounts;
+        }
+
+        public PageResult<RecipeRecord> getPage() { return page; }
+        public Map<String, Long> getCategoryCounts() { return categoryCounts; }
+    }
+
+    /**
+     * 单个营养字段的范围条件
+     */
+    public static final class NutritionRange {
+        private final String field;
+        private final Double min;
+        private final Double max;
+
+        public NutritionRange(String field, Double min, Double max) {
+            this.field = field;
+            this.min = min;
+            this.max = max;
+        }
+
+        public static NutritionRange between(String field, double min, double max) {
+            return new NutritionRange(field, min, max);
+        }
+
+        public static NutritionRange atLeast(String field, double min) {
+            return new NutritionRange(field, min, null);
+        }
+
+        public static NutritionRange atMost(String field, double max) {
+            return new NutritionRange(field, null, max);
+        }
+
+        public String getField() { return field; }
+        public Double getMin() { return min; }
+        public Double getMax() { return max; }
+    }
+
+    private static String searchFromWhere(int mask) {
+        StringBuilder sql = new StringBuilder(
+                "FROM recipes r " +
+                        "LEFT JOIN nutrition n ON r.id = n.recipe_id " +
+                        "WHERE 1=1 "
+        );
+        if ((mask & SEARCH_KEYWORD) != 0) sql.append("AND (r.name ILIKE ? OR r.description ILIKE ?) ");
+        if ((mask & SEARCH_CATEGORY) != 0) sql.append("AND r.category_id = ? ");
+        if ((mask & SEARCH_MIN_RATING) != 0) sql.append("AND r.aggregated_rating >= ? ");
+        for (int f = 0; f < NUTRITION_FIELDS.length; f++) {
+            if ((mask & nutritionBit(f)) != 0) sql.append("AND n.").append(NUTRITION_FIELDS[f]).append(" BETWEEN ? AND ? ");
+        }
+        return sql.toString();
+    }
+
+    // 未知排序统一归为默认排序，避免产生额外的形状
+    private static String searchSortKey(String sort) {
+        if ("rating_desc".equals(sort) || "date_desc".equals(sort)) return sort;
+        if (sort != null) {
+            for (String field : NUTRITION_FIELDS) {
+                if (sort.equals(field + "_asc") || sort.equals(field + "_desc")) return sort;
+            }
+        }
+        return "id";
+    }
+
+    private static String searchOrderBy(String sortKey) {
+        switch (sortKey) {
+            case "rating_desc": return "ORDER BY r.aggregated_rating DESC NULLS LAST, r.id ASC ";
+            case "date_desc": return "ORDER BY r.create_time DESC, r.id ASC ";
+            case "id": return "ORDER BY r.id ASC ";
+            default:
+                // 营养字段排序，取自 nutrition 表：升序对应 idx_nutrition_<f>，降序对应 idx_nutrition_<f>_desc。
+                // 有营养范围条件时 LEFT JOIN 被化简为内连接，规划器才能按索引顺序取行；没有时仍需排序
+                int split = sortKey.lastIndexOf('_');
+                String direction = sortKey.endsWith("_desc") ? "DESC" : "ASC";
+                return "ORDER BY n." + sortKey.substring(0, split) + " " + direction + " NULLS LAST, r.id ASC ";
+        }
+    }
+
     private RecipeRecord mapResultSetToRecipe(Connection conn, ResultSet rs) throws SQLException {
+        RecipeRecord r = mapRecipeColumns(rs);
+        r.setRecipeIngredientParts(fetchIngredients(conn, r.getRecipeId()));
+        fillAuthorNames(conn, Collections.singletonList(r));
+        return r;
+    }
+
+    // 只映射 recipes / nutrition 列，食材和作者名由调用方单独填充
+    private RecipeRecord mapRecipeColumns(ResultSet rs) throws SQLException {
         RecipeRecord r = new RecipeRecord();
         long recipeId = rs.getLong("id");
 
@@ -306,18 +703,15 @@ public class RecipeServiceImpl implements RecipeService {
         r.setAggregatedRating(rs.getFloat("aggregated_rating"));
         r.setCalories(rs.getFloat("calories"));
 
-        try { r.setAuthorName(rs.getString("author_name")); } catch (Exception e) { r.setAuthorName("Unknown"); }
-
         try {
             r.setFatContent(rs.getFloat("fat"));
             r.setSugarContent(rs.getFloat("sugar"));
             r.setProteinContent(rs.getFloat("protein"));
             r.setCarbohydrateContent(rs.getFloat("carbohydrates"));
+            r.setSodiumContent(rs.getFloat("sodium"));
         } catch (Exception e) {}
 
         r.setTotalTime(calculateTotalTime(r.getCookTime(), r.getPrepTime()));
-        r.setRecipeIngredientParts(fetchIngredients(conn, recipeId));
-
         return r;
     }
 
@@ -331,10 +725,52 @@ public class RecipeServiceImpl implements RecipeService {
                     list.add(rs.getString(1));
                 }
             }
-        } catch (SQLException e) {}
+        } catch (SQLException e) {
+            log.error("Error fetching ingredients", e);
+        }
         return list.toArray(new String[0]);
     }
 
+    // 一次查询填充多条食谱的食材，顺序与 fetchIngredients 一致
+    private void fillIngredients(Connection conn, List<RecipeRecord> recipes) throws SQLException {
+        if (recipes.isEmpty()) return;
+        long[] ids = new long[recipes.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = recipes.get(i).getRecipeId();
+
+        Map<Long, List<String>> byRecipe = new HashMap<>();
+        String sql = "SELECT recipe_id, ingredient_name FROM recipe_ingredients WHERE recipe_id = ANY (?) ORDER BY recipe_id, ingredient_name";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("bigint", boxed(ids)));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    byRecipe.computeIfAbsent(rs.getLong(1), k -> new ArrayList<>()).add(rs.getString(2));
+                }
+            }
+        }
+        for (RecipeRecord r : recipes) {
+            List<String> parts = byRecipe.get(r.getRecipeId());
+            r.setRecipeIngredientParts(parts == null ? new String[0] : parts.toArray(new String[0]));
+        }
+    }
+
+    // 作者名取自 AuthorNameDictionary，整批缺失的 id 合并成一次回查
+    private void fillAuthorNames(Connection conn, List<RecipeRecord> recipes) throws SQLException {
+        if (recipes.isEmpty()) return;
+        Set<Long> ids = new HashSet<>();
+        for (RecipeRecord r : recipes) ids.add(r.getAuthorId());
+        Map<Long, String> names = authorNames.namesOf(conn, ids);
+        for (RecipeRecord r : recipes) {
+            String name = names.get(r.getAuthorId());
+            r.setAuthorName(name != null ? name : "Unknown");
+        }
+    }
+
+    private static Long[] boxed(long[] ids) {
+        Long[] res = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) res[i] = ids[i];
+        return res;
+    }
+
     private String calculateTotalTime(String cook, String prep) {
         try {
             Duration d1 = (cook != null) ? Duration.parse(cook) : Duration.ZERO;
@@ -343,17 +779,17 @@ public class RecipeServiceImpl implements RecipeService {
         } catch (Exception e) { return null; }
     }
 
+    // 在打开连接之前调用：慢哈希期间不占用池连接，调用方拿到连接后再 bindUser
     private long authenticate(AuthInfo auth) {
         if (auth == null) throw new SecurityException("No auth");
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM users WHERE id = ? AND password = ?")) {
-            stmt.setLong(1, auth.getAuthorId());
-            stmt.setString(2, auth.getPassword());
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) return rs.getLong(1);
-            }
-        } catch (SQLException e) { throw new RuntimeException(e); }
-        throw new SecurityException("Auth failed");
+        Long userId = authenticator.verify(auth, false);
+        if (userId == null) throw new SecurityException("Auth failed");
+        return userId;
+    }
+
+    // 只读路由用的声明 id：不校验密码，只决定是否读主库
+    private static Long claimedId(AuthInfo auth) {
+        return auth == null ? null : auth.getAuthorId();
     }
 
     private void execute(Connection conn, String sql, long id) throws SQLException {
@@ -0,0 +1,108 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 只读方法的读写分离路由
+ * 配置了名为 replicaDataSource 的 Bean 时，ConnectionContext.openReadOnly 的请求优先发往只读副本，以下情况退回主库：
+ * 副本复制延迟超过 sustc.replica.max-staleness-ms、延迟检查失败、副本的 WAL 接收进程不在 streaming 状态 (且尚未追上主库)，
+ * 或者请求所属用户在 sustc.replica.sticky-ms 内刚做过写操作 (read-your-writes)。
+ * 未配置副本时所有请求都走主库，行为与之前一致。
+ * 延迟探测的两条连接都经过 ConnectionContext，计入连接统计和 ServiceMetrics。
+ */
+@Component
+@Slf4j
+public class ReplicaRouter {
+
+    // ConnectionContext 依赖本类做路由，延迟注入避免循环依赖
+    @Autowired
+    @Lazy
+    private ConnectionContext connections;
+
+    @Autowired(required = false)
+    @Qualifier("replicaDataSource")
+    private DataSource replica;
+
+    @Value("${sustc.replica.max-staleness-ms:1000}")
+    private long maxStalenessMillis = 1000;
+
+    @Value("${sustc.replica.sticky-ms:5000}")
+    private long stickyMillis = 5000;
+
+    private volatile long lagMillis = Long.MAX_VALUE;
+    private final Map<Long, Long> stickyUntil = new ConcurrentHashMap<>();
+
+    /**
+     * 可以读副本时返回副本数据源，否则返回 null 由调用方使用主库
+     */
+    public DataSource route(Long userId) {
+        if (replica == null || lagMillis > maxStalenessMillis) return null;
+        if (userId != null) {
+            Long until = stickyUntil.get(userId);
+            if (until != null && until > System.currentTimeMillis()) return null;
+        }
+        return replica;
+    }
+
+    /**
+     * 用户的写操作已提交，之后一段时间内该用户的读都走主库
+     */
+    public void markWrite(long userId) {
+        if (replica == null) return;
+        stickyUntil.put(userId, System.currentTimeMillis() + Math.max(stickyMillis, maxStalenessMillis));
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Scheduled(fixedDelayString = "${sustc.replica.lag-check-ms:1000}")
+    public void checkLag() {
+        if (replica == null) return;
+        // 先取主库当前 WAL 位置，副本已回放到这里就视为无延迟 (只比较副本自己的接收和回放位置时，接收中断也会显示为 0)；
+        // 否则要求 WAL 接收进程仍在 streaming，用最后回放事务的时间差估计延迟，没有回放过事务时视为不可用
+        String primarySql = "SELECT pg_current_wal_lsn()::text";
+        String replicaSql = "SELECT CASE WHEN pg_last_wal_replay_lsn() >= ?::pg_lsn THEN 0 " +
+                "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN NULL " +
+                "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END";
+        try (Connection primary = connections.openPrimaryRead("replicaRouter.checkLag.primary");
+             PreparedStatement primaryStmt = primary.prepareStatement(primarySql);
+             ResultSet primaryRs = primaryStmt.executeQuery();
+             Connection conn = connections.openReplicaProbe("replicaRouter.checkLag.replica", replica);
+             PreparedStatement stmt = conn.prepareStatement(replicaSql)) {
+            primaryRs.next();
+            stmt.setString(1, primaryRs.getString(1));
+            long lag = Long.MAX_VALUE;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    long value = rs.getLong(1);
+                    if (!rs.wasNull()) lag = value;
+                }
+            }
+            if (lag > maxStalenessMillis && lagMillis <= maxStalenessMillis) {
+                log.warn("Replica lag {} ms exceeds {} ms, routing reads to primary.", lag, maxStalenessMillis);
+            }
+            lagMillis = lag;
+        } catch (SQLException e) {
+            lagMillis = Long.MAX_VALUE;
+            log.warn("Replica lag check failed, routing reads to primary: {}", e.getMessage());
+        }
+
+        long now = System.currentTimeMillis();
+        stickyUntil.values().removeIf(until -> until <= now);
+    }
+}
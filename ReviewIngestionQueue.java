@@ -0,0 +1,356 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * addReview 的缓冲写入模式 (sustc.review-ingest.enabled=true 时启用)
+ * 评论先进有界队列，后台线程攒够 max-batch 条或等满 linger-ms 后一次刷盘：
+ * 先批量鉴权，再在同一事务内批量检查 (并共享锁住) 食谱、预取 id 后用一条多行 INSERT 写入，每个涉及的食谱只刷新一次评分。
+ * 事务提交后才完成调用方的 future，拿到的 id 已经持久化。队列满或已关闭时直接拒绝，由调用方重试或降级为同步写入；
+ * 关闭时没来得及写入的评论同样以拒绝失败，不会留下永远不完成的 future。
+ */
+@Component
+@Slf4j
+public class ReviewIngestionQueue {
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Autowired
+    private AnalyticsRollups rollups;
+
+    @Autowired
+    private ReplicaRouter replicaRouter;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private Authenticator authenticator;
+
+    @Value("${sustc.review-ingest.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sustc.review-ingest.capacity:10000}")
+    private int capacity = 10000;
+
+    @Value("${sustc.review-ingest.max-batch:500}")
+    private int maxBatch = 500;
+
+    @Value("${sustc.review-ingest.linger-ms:5}")
+    private long lingerMillis = 5;
+
+    private BlockingQueue<Pending> queue;
+    private Thread flusher;
+    private volatile boolean running;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    private static final class Pending {
+        final AuthInfo auth;
+        final long recipeId;
+        final int rating;
+        final String review;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        long userId;
+        long reviewId;
+
+        Pending(AuthInfo auth, long recipeId, int rating, String review) {
+            this.auth = auth;
+            this.recipeId = recipeId;
+            this.rating = rating;
+            this.review = review;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+        queue = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        running = true;
+        flusher = new Thread(this::runFlusher, "review-ingest-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Review ingestion queue started, capacity {}, max batch {}, linger {} ms.", capacity, maxBatch, lingerMillis);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (flusher == null) return;
+        running = false;
+        flusher.interrupt();
+        flusher.join(10_000);
+        // 后台线程已退出 (或超时)，队列里剩下的 (包括与关闭并发入队的) 不会再被写入，直接失败
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        for (Pending p : rest) reject(p, "Review ingestion queue is stopped");
+        if (!rest.isEmpty()) log.warn("Review ingestion queue stopped with {} pending reviews, failed them.", rest.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 入队一条评论；参数错误同步抛出，鉴权失败 / 食谱不存在 / 写入失败通过 future 返回
+     */
+    public CompletableFuture<Long> submit(AuthInfo auth, long recipeId, int rating, String review) {
+        if (!enabled) throw new IllegalStateException("Review ingestion queue is disabled");
+        if (auth == null) throw new SecurityException("No auth");
+        if (rating < 1 || rating > 5) throw new IllegalArgumentException("Rating 1-5");
+
+        Pending p = new Pending(auth, recipeId, rating, review);
+        if (!running) {
+            reject(p, "Review ingestion queue is stopped");
+            return p.result;
+        }
+        if (!queue.offer(p)) {
+            reject(p, "Review ingestion queue is full");
+            return p.result;
+        }
+        // 与 stop 并发：入队后再看一次，关闭已经开始且还没人取走时自己撤回，否则由后台线程或 stop 的收尾负责完成
+        if (!running && queue.remove(p)) {
+            reject(p, "Review ingestion queue is stopped");
+            return p.result;
+        }
+        accepted.incrementAndGet();
+        return p.result;
+    }
+
+    private void reject(Pending p, String reason) {
+        rejected.incrementAndGet();
+        p.result.completeExceptionally(new RejectedExecutionException(reason));
+    }
+
+    private void runFlusher() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                // 攒批：最多等 linger-ms
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // 关闭时把队列里剩下的刷完
+                queue.drainTo(batch, maxBatch - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        flushes.incrementAndGet();
+        try {
+            write(batch);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            // 整批失败 (例如食谱在检查后被并发删除)，逐条重试，避免一条坏数据拖垮整批
+            log.warn("Review batch of {} failed, retrying one by one: {}", batch.size(), e.getMessage());
+            for (Pending p : batch) {
+                if (p.result.isDone()) continue; // 鉴权 / 食谱检查已经失败的不再重试
+                try {
+                    write(Collections.singletonList(p));
+                } catch (Exception ex) {
+                    fail(p, ex);
+                }
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) throws SQLException {
+        List<Pending> authed = authenticate(batch);
+        if (authed.isEmpty()) return;
+        List<Pending> valid = new ArrayList<>(authed.size());
+        Set<Long> users = new HashSet<>();
+        Map<Long, Double> ratings = new HashMap<>();
+        try (Connection conn = connections.open("addReviewBatch")) {
+            conn.setAutoCommit(false);
+            try {
+                Set<Long> recipes = existingRecipes(conn, authed);
+                for (Pending p : authed) {
+                    if (!recipes.contains(p.recipeId)) {
+                        fail(p, new IllegalArgumentException("Recipe not found"));
+                    } else {
+                        p.userId = p.auth.getAuthorId();
+                        valid.add(p);
+                    }
+                }
+                if (valid.isEmpty()) {
+                    conn.commit();
+                    return;
+                }
+
+                long[] ids = allocateIds(conn, valid.size());
+                Long[] idArr = new Long[valid.size()];
+                Long[] recipeArr = new Long[valid.size()];
+                Long[] userArr = new Long[valid.size()];
+                Integer[] ratingArr = new Integer[valid.size()];
+                String[] contentArr = new String[valid.size()];
+                for (int i = 0; i < valid.size(); i++) {
+                    Pending p = valid.get(i);
+                    p.reviewId = ids[i];
+                    idArr[i] = ids[i];
+                    recipeArr[i] = p.recipeId;
+                    userArr[i] = p.userId;
+                    ratingArr[i] = p.rating;
+                    contentArr[i] = p.review;
+                    users.add(p.userId);
+                }
+
+                String insert = "INSERT INTO reviews (id, recipe_id, user_id, rating, content, create_time) " +
+                        "SELECT t.id, t.recipe_id, t.user_id, t.rating, t.content, NOW() " +
+                        "FROM unnest(?::bigint[], ?::bigint[], ?::bigint[], ?::int[], ?::text[]) AS t(id, recipe_id, user_id, rating, content)";
+                try (PreparedStatement stmt = conn.prepareStatement(insert)) {
+                    stmt.setArray(1, conn.createArrayOf("bigint", idArr));
+                    stmt.setArray(2, conn.createArrayOf("bigint", recipeArr));
+                    stmt.setArray(3, conn.createArrayOf("bigint", userArr));
+                    stmt.setArray(4, conn.createArrayOf("integer", ratingArr));
+                    stmt.setArray(5, conn.createArrayOf("text", contentArr));
+                    stmt.executeUpdate();
+                }
+
+                // 每个食谱只刷新一次评分，与单条 addReview 的保留两位小数一致
+                String refresh = "UPDATE recipes r SET aggregated_rating = s.avg, review_count = s.cnt " +
+                        "FROM (SELECT recipe_id, ROUND(AVG(rating)::numeric, 2) AS avg, COUNT(*) AS cnt " +
+                        "      FROM reviews WHERE recipe_id = ANY (?) GROUP BY recipe_id) s " +
+                        "WHERE r.id = s.recipe_id RETURNING r.id, r.aggregated_rating";
+                try (PreparedStatement stmt = conn.prepareStatement(refresh)) {
+                    stmt.setArray(1, conn.createArrayOf("bigint", new LinkedHashSet<>(Arrays.asList(recipeArr)).toArray()));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) ratings.put(rs.getLong(1), rs.getDouble(2));
+                    }
+                }
+
+                rollups.onReviews(conn, idArr);
+                List<Long> touched = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(recipeArr)));
+                changeFeed.publish(conn, ChangeFeed.REVIEWS_CHANGED, touched.get(0), touched.subList(1, touched.size()));
+                conn.commit();
+            } catch (Exception e) {
+                connections.markFailed();
+                conn.rollback();
+                throw e;
+            }
+            // 提交后的内存更新在作用域释放前完成，预热快照据此判断本节点已提交的写入都已反映在内存里
+            ratings.forEach(columnSnapshot::onRatingChanged);
+        }
+
+        written.addAndGet(valid.size());
+        for (long userId : users) replicaRouter.markWrite(userId);
+        for (Pending p : valid) p.result.complete(p.reviewId);
+    }
+
+    // 令牌直接验签；其余请求的存储值在短作用域里一次读出，连接归还后再做慢哈希校验
+    private List<Pending> authenticate(List<Pending> batch) throws SQLException {
+        List<Pending> authed = new ArrayList<>(batch.size());
+        boolean[] token = new boolean[batch.size()];
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            token[i] = authenticator.checkToken(batch.get(i).auth);
+            if (!token[i]) ids.add(batch.get(i).auth.getAuthorId());
+        }
+        Map<Long, String> passwords = new HashMap<>();
+        if (!ids.isEmpty()) {
+            try (Connection conn = connections.open("authenticate");
+                 PreparedStatement stmt = conn.prepareStatement("SELECT id, password FROM users WHERE id = ANY (?)")) {
+                stmt.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) passwords.put(rs.getLong(1), rs.getString(2));
+                }
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Pending p = batch.get(i);
+            long id = p.auth.getAuthorId();
+            boolean ok = token[i]
+                    || passwords.containsKey(id) && authenticator.checkPassword(id, p.auth.getPassword(), passwords.get(id));
+            if (ok) authed.add(p);
+            else fail(p, new SecurityException("Auth failed"));
+        }
+        return authed;
+    }
+
+    // FOR SHARE 锁住查到的食谱直到本批提交，并发的 deleteRecipe 会等待，不会留下指向已删除食谱的评论
+    private Set<Long> existingRecipes(Connection conn, List<Pending> batch) throws SQLException {
+        Set<Long> ids = new HashSet<>();
+        for (Pending p : batch) ids.add(p.recipeId);
+        Set<Long> res = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM recipes WHERE id = ANY (?) FOR SHARE")) {
+            stmt.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) res.add(rs.getLong(1));
+            }
+        }
+        return res;
+    }
+
+    // 先从序列取 id，插入后不需要再把 RETURNING 的顺序和请求对应起来
+    private long[] allocateIds(Connection conn, int n) throws SQLException {
+        String sql = "SELECT nextval(pg_get_serial_sequence('reviews', 'id')) FROM generate_series(1, ?)";
+        long[] ids = new long[n];
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, n);
+            try (ResultSet rs = stmt.executeQuery()) {
+                for (int i = 0; i < n && rs.next(); i++) ids[i] = rs.getLong(1);
+            }
+        }
+        return ids;
+    }
+
+    private void fail(Pending p, Exception e) {
+        failed.incrementAndGet();
+        p.result.completeExceptionally(e instanceof SQLException ? new RuntimeException(e) : e);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("Queued", queue == null ? 0 : queue.size());
+        m.put("Accepted", accepted.get());
+        m.put("Rejected", rejected.get());
+        m.put("Written", written.get());
+        m.put("Failed", failed.get());
+        m.put("Flushes", flushes.get());
+        m.put("AvgBatchSize", flushes.get() == 0 ? 0.0 : (double) written.get() / flushes.get());
+        return m;
+    }
+}
@@ -9,24 +9,49 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
 public class ReviewServiceImpl implements ReviewService {
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionContext connections;
+
+    @Autowired
+    private AsyncServiceExecutor asyncExecutor;
+
+    @Autowired
+    private AnalyticsRollups rollups;
+
+    @Autowired
+    private ReviewIngestionQueue ingestionQueue;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private Authenticator authenticator;
 
     @Override
     public long addReview(AuthInfo auth, long recipeId, int rating, String review) {
         long userId = authenticate(auth);
-        if (rating < 1 || rating > 5) throw new IllegalArgumentException("Rating 1-5");
+        try (Connection conn = connections.open("addReview")) {
+            connections.bindUser(userId);
+            if (rating < 1 || rating > 5) throw new IllegalArgumentException("Rating 1-5");
 
-        try (Connection conn = dataSource.getConnection()) {
             // Check Recipe Exists
             try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM recipes WHERE id = ?")) {
                 stmt.setLong(1, recipeId);
@@ -36,78 +61,108 @@ public class ReviewServiceImpl implements ReviewService {
             // Insert Review
             // 注意：这里同时插入 create_time 作为 dateSubmitted
             String sql = "INSERT INTO reviews (recipe_id, user_id, rating, content, create_time) VALUES (?, ?, ?, ?, NOW()) RETURNING id";
-            long reviewId;
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, recipeId);
-                stmt.setLong(2, userId);
-                stmt.setInt(3, rating);
-                stmt.setString(4, review);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) reviewId = rs.getLong(1);
-                    else throw new SQLException("Insert failed");
+            // 评论、评分刷新和日汇总同事务提交
+            conn.setAutoCommit(false);
+            try {
+                long reviewId;
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setLong(1, recipeId);
+                    stmt.setLong(2, userId);
+                    stmt.setInt(3, rating);
+                    stmt.setString(4, review);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) reviewId = rs.getLong(1);
+                        else throw new SQLException("Insert failed");
+                    }
                 }
-            }
-            refreshRecipeAggregatedRating(recipeId);
-            return reviewId;
+                Double newRating = refreshRecipeAggregatedRating(conn, recipeId);
+                rollups.onReview(conn, recipeId, reviewId, 1);
+                changeFeed.publish(conn, ChangeFeed.REVIEWS_CHANGED, recipeId);
+                conn.commit();
+                columnSnapshot.onRatingChanged(recipeId, newRating);
+                return reviewId;
+            } catch (Exception e) { connections.markFailed(); conn.rollback(); throw e; }
         } catch (SQLException e) { throw new RuntimeException(e); }
     }
 
     @Override
     public void editReview(AuthInfo auth, long recipeId, long reviewId, int rating, String review) {
-        long userId = authenticate(auth);
-        if (rating < 1 || rating > 5) throw new IllegalArgumentException("Rating 1-5");
-
         // 更新 content, rating 以及 date_modified (如果有这个字段的话，没有需自行添加列或忽略)
         String sql = "UPDATE reviews SET rating = ?, content = ? WHERE id = ? AND recipe_id = ? AND user_id = ?";
-        try (Connection conn = dataSource.getConnection();
+        long userId = authenticate(auth);
+        try (Connection conn = connections.open("editReview");
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, rating);
-            stmt.setString(2, review);
-            stmt.setLong(3, reviewId);
-            stmt.setLong(4, recipeId);
-            stmt.setLong(5, userId);
-            if (stmt.executeUpdate() == 0) throw new SecurityException("Edit failed: Not owner or not found");
-
-            refreshRecipeAggregatedRating(recipeId);
+            connections.bindUser(userId);
+            if (rating < 1 || rating > 5) throw new IllegalArgumentException("Rating 1-5");
+
+            // 日汇总先减去旧评分再加上新评分，与修改同事务提交
+            conn.setAutoCommit(false);
+            try {
+                rollups.onReview(conn, recipeId, reviewId, -1);
+                stmt.setInt(1, rating);
+                stmt.setString(2, review);
+                stmt.setLong(3, reviewId);
+                stmt.setLong(4, recipeId);
+                stmt.setLong(5, userId);
+                if (stmt.executeUpdate() == 0) throw new SecurityException("Edit failed: Not owner or not found");
+                rollups.onReview(conn, recipeId, reviewId, 1);
+
+                Double newRating = refreshRecipeAggregatedRating(conn, recipeId);
+                changeFeed.publish(conn, ChangeFeed.REVIEWS_CHANGED, recipeId);
+                conn.commit();
+                columnSnapshot.onRatingChanged(recipeId, newRating);
+            } catch (Exception e) { connections.markFailed(); conn.rollback(); throw e; }
         } catch (SQLException e) { throw new RuntimeException(e); }
     }
 
     @Override
     public void deleteReview(AuthInfo auth, long recipeId, long reviewId) {
         long userId = authenticate(auth);
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.open("deleteReview")) {
+            connections.bindUser(userId);
             conn.setAutoCommit(false);
             try {
-                // Verify Owner
-                try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id, recipe_id FROM reviews WHERE id = ?")) {
+                // Verify Owner：带上分区键 recipe_id 只查一个分区，查不到时再按 id 区分“不存在”和“食谱不匹配”
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM reviews WHERE id = ? AND recipe_id = ?")) {
                     stmt.setLong(1, reviewId);
+                    stmt.setLong(2, recipeId);
                     try (ResultSet rs = stmt.executeQuery()) {
-                        if (!rs.next()) throw new IllegalArgumentException("Not found");
+                        if (!rs.next()) {
+                            throw new IllegalArgumentException(reviewExists(conn, reviewId) ? "Recipe mismatch" : "Not found");
+                        }
                         if (rs.getLong("user_id") != userId) throw new SecurityException("Not owner");
-                        if (rs.getLong("recipe_id") != recipeId) throw new IllegalArgumentException("Recipe mismatch");
                     }
                 }
 
+                rollups.onReview(conn, recipeId, reviewId, -1);
                 // Delete Likes then Review
                 try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM review_likes WHERE review_id = ?")) {
                     stmt.setLong(1, reviewId);
                     stmt.executeUpdate();
                 }
-                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM reviews WHERE id = ?")) {
+                // 带上分区键 recipe_id，只访问一个分区
+                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM reviews WHERE id = ? AND recipe_id = ?")) {
                     stmt.setLong(1, reviewId);
+                    stmt.setLong(2, recipeId);
                     stmt.executeUpdate();
                 }
+                // 评分刷新与删除同事务提交
+                Double newRating = refreshRecipeAggregatedRating(conn, recipeId);
+                changeFeed.publish(conn, ChangeFeed.REVIEWS_CHANGED, recipeId);
                 conn.commit();
-                refreshRecipeAggregatedRating(recipeId);
-            } catch (Exception e) { conn.rollback(); throw e; }
+                columnSnapshot.onRatingChanged(recipeId, newRating);
+            } catch (Exception e) { connections.markFailed(); conn.rollback(); throw e; }
         } catch (SQLException e) { throw new RuntimeException(e); }
     }
 
     @Override
     public long likeReview(AuthInfo auth, long reviewId) {
         long userId = authenticate(auth);
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.open("likeReview")) {
+            connections.bindUser(userId);
             // Check self-like
+            // 接口只给 reviewId，没有分区键，这里会探测 reviews 的全部 16 个分区 (每个分区走 idx_reviews_id 的一次索引查找)；
+            // 点赞本身的读写按 review_id 只落在 review_likes 的一个分区
             try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM reviews WHERE id = ?")) {
                 stmt.setLong(1, reviewId);
                 try (ResultSet rs = stmt.executeQuery()) {
@@ -132,7 +187,8 @@ public class ReviewServiceImpl implements ReviewService {
     @Override
     public long unlikeReview(AuthInfo auth, long reviewId) {
         long userId = authenticate(auth);
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.open("unlikeReview")) {
+            connections.bindUser(userId);
             try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM review_likes WHERE review_id = ? AND user_id = ?")) {
                 stmt.setLong(1, reviewId);
                 stmt.setLong(2, userId);
@@ -148,11 +204,17 @@ public class ReviewServiceImpl implements ReviewService {
 
     @Override
     public PageResult<ReviewRecord> listByRecipe(long recipeId, int page, int size, String sort) {
-        // SQL: JOIN users 表以获取 authorName，同时子查询 count likes 用于排序
-        String sql = "SELECT r.*, u.name as author_name, " +
+        return listByRecipe(recipeId, page, size, sort, null);
+    }
+
+    /**
+     * 同 listByRecipe，auth 为请求方 (可为 null，不校验密码)：声明的用户刚写过评论时读主库
+     */
+    public PageResult<ReviewRecord> listByRecipe(long recipeId, int page, int size, String sort, AuthInfo auth) {
+        // SQL: 子查询 count likes 用于排序；作者名取自 AuthorNameDictionary，不再 JOIN users
+        String sql = "SELECT r.*, " +
                 "(SELECT COUNT(*) FROM review_likes rl WHERE rl.review_id = r.id) as like_cnt " +
                 "FROM reviews r " +
-                "JOIN users u ON r.user_id = u.id " +
                 "WHERE r.recipe_id = ? ";
 
         if ("likes_desc".equals(sort)) sql += "ORDER BY like_cnt DESC, r.create_time DESC ";
@@ -163,7 +225,7 @@ public class ReviewServiceImpl implements ReviewService {
         List<ReviewRecord> list = new ArrayList<>();
         long total = 0;
 
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.openReadOnly("listByRecipe", claimedId(auth))) {
             // 1. Get Total Count
             try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM reviews WHERE recipe_id = ?")) {
                 stmt.setLong(1, recipeId);
@@ -182,7 +244,6 @@ public class ReviewServiceImpl implements ReviewService {
                         rec.setReviewId(rs.getLong("id"));
                         rec.setRecipeId(rs.getLong("recipe_id"));
                         rec.setAuthorId(rs.getLong("user_id"));
-                        rec.setAuthorName(rs.getString("author_name")); // 从 JOIN 获取
                         rec.setRating(rs.getFloat("rating"));
                         rec.setReview(rs.getString("content"));
                         rec.setDateSubmitted(rs.getTimestamp("create_time"));
@@ -196,6 +257,12 @@ public class ReviewServiceImpl implements ReviewService {
                     }
                 }
             }
+
+            // 3. 一页的作者名一次取完
+            Set<Long> authorIds = new HashSet<>();
+            for (ReviewRecord rec : list) authorIds.add(rec.getAuthorId());
+            Map<Long, String> names = authorNames.namesOf(conn, authorIds);
+            for (ReviewRecord rec : list) rec.setAuthorName(names.get(rec.getAuthorId()));
         } catch (SQLException e) { throw new RuntimeException(e); }
 
         // 构造函数：list, page, size, total
@@ -204,35 +271,76 @@ public class ReviewServiceImpl implements ReviewService {
 
     @Override
     public RecipeRecord refreshRecipeAggregatedRating(long recipeId) {
+        try (Connection conn = connections.open("refreshRecipeAggregatedRating")) {
+            columnSnapshot.onRatingChanged(recipeId, refreshRecipeAggregatedRating(conn, recipeId));
+            return null;
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    // 错误路径才用：不带分区键，探测全部分区
+    private boolean reviewExists(Connection conn, long reviewId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM reviews WHERE id = ?")) {
+            stmt.setLong(1, reviewId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // 在调用方的连接 (和事务) 上重新计算评分，返回新评分 (没有评论时为 null)，供提交后同步列式快照
+    private Double refreshRecipeAggregatedRating(Connection conn, long recipeId) throws SQLException {
         String query = "SELECT AVG(rating) as val, COUNT(*) as cnt FROM reviews WHERE recipe_id = ?";
         String update = "UPDATE recipes SET aggregated_rating = ?, review_count = ? WHERE id = ?";
 
-        try (Connection conn = dataSource.getConnection()) {
-            double avg = 0;
-            int count = 0;
-            boolean hasReview = false;
+        double avg = 0;
+        int count = 0;
+        boolean hasReview = false;
 
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setLong(1, recipeId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next() && rs.getInt("cnt") > 0) {
-                        hasReview = true;
-                        count = rs.getInt("cnt");
-                        avg = Math.round(rs.getDouble("val") * 100.0) / 100.0;
-                    }
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setLong(1, recipeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next() && rs.getInt("cnt") > 0) {
+                    hasReview = true;
+                    count = rs.getInt("cnt");
+                    avg = Math.round(rs.getDouble("val") * 100.0) / 100.0;
                 }
             }
+        }
 
-            try (PreparedStatement stmt = conn.prepareStatement(update)) {
-                if (hasReview) stmt.setDouble(1, avg);
-                else stmt.setNull(1, Types.DOUBLE);
+        try (PreparedStatement stmt = conn.prepareStatement(update)) {
+            if (hasReview) stmt.setDouble(1, avg);
+            else stmt.setNull(1, Types.DOUBLE);
 
-                stmt.setInt(2, count);
-                stmt.setLong(3, recipeId);
-                stmt.executeUpdate();
-            }
-            return null;
-        } catch (SQLException e) { throw new RuntimeException(e); }
+            stmt.setInt(2, count);
+            stmt.setLong(3, recipeId);
+            stmt.executeUpdate();
+        }
+        return hasReview ? avg : null;
+    }
+
+    /**
+     * 缓冲写入版 addReview：启用 sustc.review-ingest 时进入批量写入队列，future 在评论提交后给出 id；
+     * 未启用时同步调用 addReview
+     */
+    public CompletableFuture<Long> addReviewBuffered(AuthInfo auth, long recipeId, int rating, String review) {
+        if (ingestionQueue.isEnabled()) return ingestionQueue.submit(auth, recipeId, rating, review);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            result.complete(addReview(auth, recipeId, rating, review));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // --- Async 版本：虚拟线程执行，并发度受连接池大小限制 ---
+
+    public CompletableFuture<PageResult<ReviewRecord>> listByRecipeAsync(long recipeId, int page, int size, String sort) {
+        return asyncExecutor.submit(() -> listByRecipe(recipeId, page, size, sort));
+    }
+
+    public CompletableFuture<Long> likeReviewAsync(AuthInfo auth, long reviewId) {
+        return asyncExecutor.submit(() -> likeReview(auth, reviewId));
     }
 
     // --- 辅助方法 ---
@@ -255,16 +363,16 @@ public class ReviewServiceImpl implements ReviewService {
         return userIds.stream().mapToLong(Long::longValue).toArray();
     }
 
+    // 在打开连接之前调用：慢哈希期间不占用池连接，调用方拿到连接后再 bindUser
     private long authenticate(AuthInfo auth) {
         if (auth == null) throw new SecurityException("No auth");
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM users WHERE id = ? AND password = ?")) {
-            stmt.setLong(1, auth.getAuthorId());
-            stmt.setString(2, auth.getPassword());
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) return rs.getLong(1);
-            }
-        } catch (SQLException e) { throw new RuntimeException(e); }
-        throw new SecurityException("Auth failed");
+        Long userId = authenticator.verify(auth, false);
+        if (userId == null) throw new SecurityException("Auth failed");
+        return userId;
+    }
+
+    // 只读路由用的声明 id：不校验密码，只决定是否读主库
+    private static Long claimedId(AuthInfo auth) {
+        return auth == null ? null : auth.getAuthorId();
     }
 }
\ No newline at end of file
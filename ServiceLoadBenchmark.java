@@ -0,0 +1,308 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.dto.RecipeRecord;
+import io.sustc.dto.ReviewRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.service.DatabaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读写路径的压测工具
+ * seed 生成一份可复现的数据集并通过 importData 导入本地 PostgreSQL (会清空现有数据，必须显式打开 sustc.load-test.allow-seed)，
+ * run 按给定比例混合 searchRecipes / getRecipeById / listByRecipe / feed / likeReview / follow，
+ * 以固定并发持续压测，输出每个操作的吞吐和 p50 / p99 / p999 延迟，用来和优化前的基线对比。
+ * 每个线程保留全部原始样本，结束后合并排序，百分位是精确值而不是分桶近似。
+ * 只在 load-test profile 下注册 (spring.profiles.active=load-test)，生产部署的组件扫描不会加载它。
+ */
+@Component
+@Profile("load-test")
+@Slf4j
+public class ServiceLoadBenchmark {
+
+    public static final String SEARCH_RECIPES = "searchRecipes";
+    public static final String GET_RECIPE_BY_ID = "getRecipeById";
+    public static final String LIST_BY_RECIPE = "listByRecipe";
+    public static final String FEED = "feed";
+    public static final String LIKE_REVIEW = "likeReview";
+    public static final String FOLLOW = "follow";
+
+    private static final String[] CATEGORIES = {"Dessert", "Chicken", "Vegetable", "Beverages", "Breakfast", "Pork", "Lunch/Snacks", "Beans"};
+    private static final String[] KEYWORDS = {"cake", "soup", "salad", "chicken", "bread", "pie", "sauce", "rice"};
+    private static final String[] SORTS = {"rating_desc", "date_desc", "calories_asc", null};
+
+    @Autowired
+    private DatabaseService databaseService;
+
+    @Autowired
+    private RecipeServiceImpl recipeService;
+
+    @Autowired
+    private ReviewServiceImpl reviewService;
+
+    @Autowired
+    private UserServiceImpl userService;
+
+    @Value("${sustc.load-test.allow-seed:false}")
+    private boolean allowSeed;
+
+    private long[] userIds = new long[0];
+    private long[] recipeIds = new long[0];
+    private long[] reviewIds = new long[0];
+
+    /**
+     * 默认的读多写少混合比例
+     */
+    public static Map<String, Integer> defaultMix() {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        mix.put(GET_RECIPE_BY_ID, 35);
+        mix.put(SEARCH_RECIPES, 20);
+        mix.put(LIST_BY_RECIPE, 20);
+        mix.put(FEED, 15);
+        mix.put(LIKE_REVIEW, 5);
+        mix.put(FOLLOW, 5);
+        return mix;
+    }
+
+    public void seed(int users, int recipes, int reviewsPerRecipe, long randomSeed) {
+        if (!allowSeed) {
+            throw new IllegalStateException("Seeding drops all data, set sustc.load-test.allow-seed=true to enable it");
+        }
+        Random rnd = new Random(randomSeed);
+        String[] ingredients = new String[500];
+        for (int i = 0; i < ingredients.length; i++) ingredients[i] = "ingredient-" + i;
+
+        List<UserRecord> userRecords = new ArrayList<>(users);
+        for (int i = 1; i <= users; i++) {
+            UserRecord u = new UserRecord();
+            u.setAuthorId(i);
+            u.setAuthorName("user-" + i);
+            u.setPassword(password(i));
+            u.setGender(rnd.nextBoolean() ? "Male" : "Female");
+            u.setAge(18 + rnd.nextInt(50));
+            u.setFollowingUsers(distinct(rnd, 1 + rnd.nextInt(30), users, i));
+            userRecords.add(u);
+        }
+
+        long now = System.currentTimeMillis();
+        List<RecipeRecord> recipeRecords = new ArrayList<>(recipes);
+        for (int i = 1; i <= recipes; i++) {
+            RecipeRecord r = new RecipeRecord();
+            r.setRecipeId(i);
+            r.setAuthorId(1 + rnd.nextInt(users));
+            r.setName(KEYWORDS[rnd.nextInt(KEYWORDS.length)] + " recipe " + i);
+            r.setDescription("generated " + KEYWORDS[rnd.nextInt(KEYWORDS.length)]);
+            r.setRecipeCategory(CATEGORIES[rnd.nextInt(CATEGORIES.length)]);
+            r.setCookTime("PT" + (5 + rnd.nextInt(120)) + "M");
+            r.setPrepTime("PT" + (5 + rnd.nextInt(60)) + "M");
+            r.setDatePublished(new Timestamp(now - rnd.nextInt(1_000_000) * 1000L));
+            r.setCalories(50 + rnd.nextFloat() * 1500);
+            r.setFatContent(rnd.nextFloat() * 80);
+            r.setSaturatedFatContent(rnd.nextFloat() * 30);
+            r.setCholesterolContent(rnd.nextFloat() * 300);
+            r.setSodiumContent(rnd.nextFloat() * 2000);
+            r.setCarbohydrateContent(rnd.nextFloat() * 200);
+            r.setFiberContent(rnd.nextFloat() * 20);
+            r.setSugarContent(rnd.nextFloat() * 100);
+            r.setProteinContent(rnd.nextFloat() * 80);
+            long[] parts = distinct(rnd, 3 + rnd.nextInt(12), ingredients.length, -1);
+            String[] names = new String[parts.length];
+            for (int k = 0; k < parts.length; k++) names[k] = ingredients[(int) parts[k] - 1];
+            r.setRecipeIngredientParts(names);
+            recipeRecords.add(r);
+        }
+
+        List<ReviewRecord> reviewRecords = new ArrayList<>();
+        long reviewId = 1;
+        for (int i = 1; i <= recipes; i++) {
+            int n = rnd.nextInt(reviewsPerRecipe * 2 + 1);
+            for (int k = 0; k < n; k++) {
+                ReviewRecord rv = new ReviewRecord();
+                rv.setReviewId(reviewId++);
+                rv.setRecipeId(i);
+                rv.setAuthorId(1 + rnd.nextInt(users));
+                rv.setRating(1 + rnd.nextInt(5));
+                rv.setReview("generated review");
+                rv.setDateSubmitted(new Timestamp(now - rnd.nextInt(1_000_000) * 1000L));
+                rv.setDateModified(rv.getDateSubmitted());
+                rv.setLikes(distinct(rnd, rnd.nextInt(5), users, rv.getAuthorId()));
+                reviewRecords.add(rv);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        databaseService.importData(reviewRecords, userRecords, recipeRecords);
+        log.info("Seeded {} users, {} recipes, {} reviews in {} ms",
+                users, recipes, reviewRecords.size(), System.currentTimeMillis() - start);
+
+        userIds = userRecords.stream().mapToLong(UserRecord::getAuthorId).toArray();
+        recipeIds = recipeRecords.stream().mapToLong(RecipeRecord::getRecipeId).toArray();
+        reviewIds = reviewRecords.stream().mapToLong(ReviewRecord::getReviewId).toArray();
+    }
+
+    /**
+     * 按比例混合压测，warmup 期间的样本不计入结果
+     */
+    public Map<String, Map<String, Object>> run(Map<String, Integer> mix, int concurrency, Duration warmup, Duration duration)
+            throws InterruptedException {
+        if (userIds.length == 0 || recipeIds.length == 0) throw new IllegalStateException("Call seed() first");
+
+        String[] ops = mix.keySet().toArray(new String[0]);
+        int[] cumulative = new int[ops.length];
+        int sum = 0;
+        for (int i = 0; i < ops.length; i++) cumulative[i] = (sum += mix.get(ops[i]));
+        int totalWeight = sum;
+
+        long measureFrom = System.nanoTime() + warmup.toNanos();
+        long deadline = measureFrom + duration.toNanos();
+
+        // 每个线程各自记录，不共享计数器，避免压测工具本身成为争用点
+        Samples[] perThread = new Samples[concurrency];
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        for (int t = 0; t < concurrency; t++) {
+            Samples samples = perThread[t] = new Samples(ops.length);
+            pool.execute(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long now;
+                while ((now = System.nanoTime()) < deadline) {
+                    int pick = rnd.nextInt(totalWeight);
+                    int idx = 0;
+                    while (cumulative[idx] <= pick) idx++;
+                    try {
+                        execute(ops[idx], rnd);
+                        if (now >= measureFrom) samples.add(idx, System.nanoTime() - now);
+                    } catch (RuntimeException e) {
+                        if (now >= measureFrom) samples.errors[idx]++;
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(warmup.plus(duration).toMillis() + 60_000, TimeUnit.MILLISECONDS);
+
+        double seconds = duration.toNanos() / 1e9;
+        Map<String, Map<String, Object>> report = new LinkedHashMap<>();
+        for (int i = 0; i < ops.length; i++) {
+            int n = 0;
+            long errors = 0;
+            for (Samples s : perThread) {
+                n += s.counts[i];
+                errors += s.errors[i];
+            }
+            long[] nanos = new long[n];
+            int pos = 0;
+            for (Samples s : perThread) {
+                System.arraycopy(s.nanos[i], 0, nanos, pos, s.counts[i]);
+                pos += s.counts[i];
+            }
+            Arrays.sort(nanos);
+
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("Ops", n);
+            m.put("Errors", errors);
+            m.put("Throughput", n / seconds);
+            m.put("P50Millis", percentileMillis(nanos, 0.50));
+            m.put("P99Millis", percentileMillis(nanos, 0.99));
+            m.put("P999Millis", percentileMillis(nanos, 0.999));
+            m.put("MaxMillis", n == 0 ? 0.0 : nanos[n - 1] / 1e6);
+            report.put(ops[i], m);
+            log.info(String.format("%-14s ops=%-8d err=%-5d %9.1f ops/s  p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                    ops[i], n, errors, n / seconds, m.get("P50Millis"), m.get("P99Millis"), m.get("P999Millis"), m.get("MaxMillis")));
+        }
+        return report;
+    }
+
+    /**
+     * 单个压测线程的原始样本：每个操作一段可增长的纳秒数组
+     */
+    private static final class Samples {
+        final long[][] nanos;
+        final int[] counts;
+        final long[] errors;
+
+        Samples(int ops) {
+            nanos = new long[ops][1024];
+            counts = new int[ops];
+            errors = new long[ops];
+        }
+
+        void add(int op, long value) {
+            if (counts[op] == nanos[op].length) nanos[op] = Arrays.copyOf(nanos[op], nanos[op].length * 2);
+            nanos[op][counts[op]++] = value;
+        }
+    }
+
+    // 已排序样本的最近秩百分位 (0~1)，单位毫秒
+    private static double percentileMillis(long[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private void execute(String op, ThreadLocalRandom rnd) {
+        switch (op) {
+            case SEARCH_RECIPES:
+                recipeService.searchRecipes(
+                        rnd.nextBoolean() ? KEYWORDS[rnd.nextInt(KEYWORDS.length)] : null,
+                        rnd.nextBoolean() ? CATEGORIES[rnd.nextInt(CATEGORIES.length)] : null,
+                        rnd.nextInt(4) == 0 ? 3.0 : null,
+                        1 + rnd.nextInt(5), 10, SORTS[rnd.nextInt(SORTS.length)]);
+                break;
+            case GET_RECIPE_BY_ID:
+                recipeService.getRecipeById(pick(recipeIds, rnd));
+                break;
+            case LIST_BY_RECIPE:
+                reviewService.listByRecipe(pick(recipeIds, rnd), 1, 10, rnd.nextBoolean() ? "likes_desc" : "date_desc");
+                break;
+            case FEED:
+                userService.feed(auth(pick(userIds, rnd)), 1, 10, null);
+                break;
+            case LIKE_REVIEW:
+                if (reviewIds.length > 0) reviewService.likeReview(auth(pick(userIds, rnd)), pick(reviewIds, rnd));
+                break;
+            case FOLLOW:
+                userService.follow(auth(pick(userIds, rnd)), pick(userIds, rnd));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    private static long pick(long[] ids, ThreadLocalRandom rnd) {
+        return ids[rnd.nextInt(ids.length)];
+    }
+
+    private static AuthInfo auth(long userId) {
+        AuthInfo auth = new AuthInfo();
+        auth.setAuthorId(userId);
+        auth.setPassword(password(userId));
+        return auth;
+    }
+
+    private static String password(long userId) {
+        return "pw-" + userId;
+    }
+
+    // 在 [1, bound] 中取 n 个不同的 id，排除 exclude
+    private static long[] distinct(Random rnd, int n, int bound, long exclude) {
+        Set<Long> set = new LinkedHashSet<>();
+        n = Math.min(n, bound - 1);
+        while (set.size() < n) {
+            long id = 1 + rnd.nextInt(bound);
+            if (id != exclude) set.add(id);
+        }
+        return set.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,187 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * service 层的统一埋点
+ * 不需要改动每个方法：ConnectionContext 在请求作用域开始/结束时记录方法耗时和取连接等待时间，
+ * 并把作用域内 prepareStatement 得到的语句包一层，记录每条 SQL 的执行耗时、返回/影响行数和 SQLException 次数。
+ * 超过阈值的 SQL 记慢查询日志。指标通过 JMX (io.sustc:type=ServiceMetrics) 导出。
+ */
+@Component
+@Slf4j
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+    private static final String OBJECT_NAME = "io.sustc:type=ServiceMetrics";
+
+    private final Map<String, Stats> methods = new ConcurrentHashMap<>();
+    private final Map<String, Stats> statements = new ConcurrentHashMap<>();
+
+    private volatile long slowQueryThresholdMillis;
+
+    public ServiceMetrics(@Value("${sustc.metrics.slow-query-ms:200}") long slowQueryThresholdMillis) {
+        this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+    }
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram connectionWait = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    @PostConstruct
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (Exception e) {
+            log.warn("Failed to register {} MBean: {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("Failed to unregister {} MBean: {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    // --- 方法级 ---
+
+    public void recordConnectionWait(String method, long nanos) {
+        methodStats(method).connectionWait.record(nanos);
+    }
+
+    public void recordMethod(String method, long nanos, boolean failed) {
+        Stats s = methodStats(method);
+        s.latency.record(nanos);
+        if (failed) s.errors.incrementAndGet();
+    }
+
+    // --- SQL 级 ---
+
+    /**
+     * 包装语句：execute* 计时，ResultSet 逐行计数，执行抛出的异常计入语句和所属方法的错误数
+     */
+    public PreparedStatement instrument(PreparedStatement stmt, String sql, String method, Runnable onError) {
+        Stats s = statements.computeIfAbsent(sql, k -> new Stats());
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, m, args) -> {
+                    String name = m.getName();
+                    if (!name.startsWith("execute")) {
+                        try {
+                            return invoke(m, stmt, args);
+                        } catch (SQLException | RuntimeException e) {
+                            onError.run();
+                            throw e;
+                        }
+                    }
+
+                    long start = System.nanoTime();
+                    Object result;
+                    try {
+                        result = invoke(m, stmt, args);
+                    } catch (SQLException | RuntimeException e) {
+                        s.errors.incrementAndGet();
+                        onError.run();
+                        throw e;
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    s.latency.record(elapsed);
+                    if (elapsed / 1_000_000 >= slowQueryThresholdMillis) {
+                        log.warn("Slow query in {} took {} ms: {}", method, elapsed / 1_000_000, sql);
+                    }
+
+                    if (result instanceof ResultSet) return countRows((ResultSet) result, s);
+                    if (result instanceof Integer) s.rows.addAndGet((Integer) result);
+                    else if (result instanceof Long) s.rows.addAndGet((Long) result);
+                    else if (result instanceof int[]) for (int n : (int[]) result) s.rows.addAndGet(Math.max(n, 0));
+                    return result;
+                });
+    }
+
+    private ResultSet countRows(ResultSet rs, Stats s) {
+        return (ResultSet) Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, m, args) -> {
+                    Object result = invoke(m, rs, args);
+                    if ("next".equals(m.getName()) && Boolean.TRUE.equals(result)) s.rows.incrementAndGet();
+                    return result;
+                });
+    }
+
+    private static Object invoke(Method m, Object target, Object[] args) throws Throwable {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Stats methodStats(String method) {
+        return methods.computeIfAbsent(method, k -> new Stats());
+    }
+
+    // --- 导出 ---
+
+    @Override
+    public Map<String, Double> getSnapshot() {
+        Map<String, Double> res = new HashMap<>();
+        methods.forEach((name, s) -> {
+            put(res, "method." + name, s);
+            res.put("method." + name + ".connectionWaitP99Millis", s.connectionWait.percentileMillis(0.99));
+            res.put("method." + name + ".connectionWaitMeanMillis", s.connectionWait.getMeanMillis());
+        });
+        statements.forEach((sql, s) -> {
+            put(res, "sql." + sql, s);
+            res.put("sql." + sql + ".rows", (double) s.rows.get());
+        });
+        return res;
+    }
+
+    private static void put(Map<String, Double> res, String prefix, Stats s) {
+        res.put(prefix + ".count", (double) s.latency.getCount());
+        res.put(prefix + ".errors", (double) s.errors.get());
+        res.put(prefix + ".meanMillis", s.latency.getMeanMillis());
+        res.put(prefix + ".p50Millis", s.latency.percentileMillis(0.50));
+        res.put(prefix + ".p99Millis", s.latency.percentileMillis(0.99));
+        res.put(prefix + ".maxMillis", s.latency.getMaxMillis());
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdMillis;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long millis) {
+        this.slowQueryThresholdMillis = millis;
+    }
+}
@@ -0,0 +1,18 @@
+package io.sustc.service.impl;
+
+import java.util.Map;
+
+/**
+ * ServiceMetrics 的 JMX 视图，注册为 io.sustc:type=ServiceMetrics
+ */
+public interface ServiceMetricsMXBean {
+
+    /**
+     * 扁平化的指标快照，键形如 method.searchRecipes.p99Millis、sql.&lt;语句&gt;.rows
+     */
+    Map<String, Double> getSnapshot();
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long millis);
+}
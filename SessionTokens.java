@@ -0,0 +1,100 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 短期会话令牌：st1.用户id.过期时间(秒).签名，签名为 HMAC-SHA256
+ * 客户端登录一次后把令牌放在 AuthInfo.password 里，之后的鉴权只验签，不查库也不做慢哈希。
+ * 密钥取 sustc.session.secret (Base64，多节点需配置成同一个)，未配置时每次启动随机生成，重启后旧令牌失效。
+ * 注销账号时本节点记录吊销时间，之前签发的令牌立即失效；其他节点上的令牌最长在 ttl 后过期。
+ */
+@Component
+@Slf4j
+public class SessionTokens {
+
+    public static final String PREFIX = "st1.";
+
+    @Value("${sustc.session.secret:}")
+    private String secret;
+
+    @Value("${sustc.session.ttl-seconds:900}")
+    private long ttlSeconds = 900;
+
+    private SecretKeySpec key;
+    private final Map<Long, Long> revokedBefore = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        byte[] raw;
+        if (secret == null || secret.isEmpty()) {
+            raw = new byte[32];
+            new SecureRandom().nextBytes(raw);
+            log.info("No sustc.session.secret configured, session tokens are valid on this node until restart only.");
+        } else {
+            raw = Base64.getDecoder().decode(secret);
+        }
+        key = new SecretKeySpec(raw, "HmacSHA256");
+    }
+
+    public String issue(long userId) {
+        long expires = System.currentTimeMillis() / 1000 + ttlSeconds;
+        String body = PREFIX + userId + "." + expires;
+        return body + "." + sign(body);
+    }
+
+    /**
+     * 令牌属于 userId、签名正确、未过期且未被吊销时返回 true；不是令牌格式的返回 false
+     */
+    public boolean verify(String token, long userId) {
+        if (token == null || !token.startsWith(PREFIX)) return false;
+        int sig = token.lastIndexOf('.');
+        String body = token.substring(0, sig);
+        String[] parts = body.split("\\.");
+        if (parts.length != 3) return false;
+        try {
+            if (Long.parseLong(parts[1]) != userId) return false;
+            long expires = Long.parseLong(parts[2]);
+            long now = System.currentTimeMillis() / 1000;
+            if (expires < now) return false;
+            Long revoked = revokedBefore.get(userId);
+            if (revoked != null && expires - ttlSeconds <= revoked) return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(sign(body).getBytes(StandardCharsets.US_ASCII),
+                token.substring(sig + 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * 吊销该用户此前签发的所有令牌
+     */
+    public void revoke(long userId) {
+        revokedBefore.put(userId, System.currentTimeMillis() / 1000);
+        // 吊销记录只需要保留到这些令牌自然过期
+        long cutoff = System.currentTimeMillis() / 1000 - ttlSeconds;
+        revokedBefore.values().removeIf(t -> t < cutoff);
+    }
+
+    private String sign(String body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(body.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.RecipeRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * 按食材集合找相似食谱的 MinHash + LSH 索引 (sustc.similar.enabled=true 时启用)
+ * 每个食谱的食材集合 (名字 trim + 小写后取 64 位哈希) 压成 bands * rows 个 MinHash 值 (每个只留低 16 位)，
+ * 两个签名对应位置相等的比例近似 Jaccard 相似度。签名按 band 切开，每段哈希成一个桶键，
+ * 任一 band 落在同一个桶的食谱才作为候选，候选再按签名估计相似度取 top-k，不再和全部食谱逐个比较。
+ * 默认 16 x 3：Jaccard 0.5 的食谱对有约 88% 概率成为候选，0.2 的只有约 12%。
+ * 存储全是基本类型数组：槽位 -> 食谱 id、平铺的 char 签名、每个 band 一个按桶键排序的 (桶键, 槽位) long 数组，
+ * 每个食谱约 100 + 8 * bands 字节。
+ * 导入时整体重建 (或首次使用时从 recipe_ingredients 加载)，createRecipe / deleteRecipe 提交后增量更新：
+ * 新食谱先追加在尾部，攒够一批再并入有序数组；删除只打墓碑，墓碑过半时整理一次。
+ */
+@Component
+@Slf4j
+public class SimilarRecipeIndex {
+
+    private static final long SEED = 0x5EC1FE5L;
+    // 未合并的新槽位超过这个数就并入各 band 的有序数组，查询时逐个比较的尾部不会太长
+    private static final int MERGE_THRESHOLD = 256;
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Value("${sustc.similar.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sustc.similar.bands:16}")
+    private int bands = 16;
+
+    @Value("${sustc.similar.rows:3}")
+    private int rows = 3;
+
+    @Value("${sustc.similar.max-candidates:5000}")
+    private int maxCandidates = 5000;
+
+    // 第 i 个哈希函数 h_i(x) = (a_i * x + b_i) >>> 1，系数由固定种子生成，各节点 / 重启后签名一致
+    private long[] coefA;
+    private long[] coefB;
+    private int hashes;
+
+    private Table table;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    /**
+     * 相似食谱：id 和估计的 Jaccard 相似度
+     */
+    public static final class Match {
+        private final long recipeId;
+        private final double similarity;
+
+        Match(long recipeId, double similarity) {
+            this.recipeId = recipeId;
+            this.similarity = similarity;
+        }
+
+        public long getRecipeId() {
+            return recipeId;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        hashes = bands * rows;
+        coefA = new long[hashes];
+        coefB = new long[hashes];
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = 0; i < hashes; i++) {
+            coefA[i] = random.nextLong() | 1;
+            coefB[i] = random.nextLong();
+        }
+        table = new Table(16);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 与 recipeId 食材最相近的 k 个食谱，按估计相似度降序、id 升序；食谱不存在或没有食材时返回空列表
+     */
+    public List<Match> similar(long recipeId, int k) {
+        if (k <= 0) throw new IllegalArgumentException("k must be positive");
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            Table t = table;
+            int self = t.slots.get(recipeId);
+            if (self < 0 || t.removed[self]) return Collections.emptyList();
+            int base = self * hashes;
+            int[] keys = new int[bands];
+            for (int b = 0; b < bands; b++) keys[b] = bandKey(t.sigs, base, b);
+
+            // 收集各 band 同桶的槽位：已合并部分二分查找，尚未合并的尾部逐个比较
+            int[] cand = new int[64];
+            int n = 0;
+            for (int b = 0; b < bands && n < maxCandidates; b++) {
+                long[] index = t.bandIndex[b];
+                for (int i = lowerBound(index, (long) keys[b] << 32); i < index.length && n < maxCandidates; i++) {
+                    if ((int) (index[i] >> 32) != keys[b]) break;
+                    int s = (int) index[i];
+                    if (s == self || t.removed[s]) continue;
+                    if (n == cand.length) cand = Arrays.copyOf(cand, n * 2);
+                    cand[n++] = s;
+                }
+            }
+            for (int s = t.merged; s < t.size && n < maxCandidates; s++) {
+                if (s == self || t.removed[s]) continue;
+                for (int b = 0; b < bands; b++) {
+                    if (bandKey(t.sigs, s * hashes, b) == keys[b]) {
+                        if (n == cand.length) cand = Arrays.copyOf(cand, n * 2);
+                        cand[n++] = s;
+                        break;
+                    }
+                }
+            }
+            Arrays.sort(cand, 0, n);
+
+            // 按签名相等的位数保留前 k 个，插入排序足够 (k 很小)
+            int m = Math.min(k, n);
+            int[] topScore = new int[m];
+            long[] topId = new long[m];
+            int filled = 0;
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && cand[i] == cand[i - 1]) continue;
+                int s = cand[i];
+                int off = s * hashes;
+                int score = 0;
+                for (int j = 0; j < hashes; j++) {
+                    if (t.sigs[off + j] == t.sigs[base + j]) score++;
+                }
+                long id = t.ids[s];
+                int pos = filled;
+                while (pos > 0 && (topScore[pos - 1] < score || topScore[pos - 1] == score && topId[pos - 1] > id)) pos--;
+                if (pos >= m) continue;
+                int tail = Math.min(filled, m - 1);
+                System.arraycopy(topScore, pos, topScore, pos + 1, tail - pos);
+                System.arraycopy(topId, pos, topId, pos + 1, tail - pos);
+                topScore[pos] = score;
+                topId[pos] = id;
+                if (filled < m) filled++;
+            }
+
+            List<Match> result = new ArrayList<>(filled);
+            for (int i = 0; i < filled; i++) result.add(new Match(topId[i], (double) topScore[i] / hashes));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int lowerBound(long[] a, long v) {
+        int lo = 0, hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public void onRecipeCreated(long recipeId, String[] ingredients) {
+        if (!enabled || !loaded) return;
+        char[] sig = signature(ingredients);
+        if (sig == null) return;
+        lock.writeLock().lock();
+        try {
+            table.add(recipeId, sig, 0);
+            if (table.size - table.merged >= MERGE_THRESHOLD) table.merge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onRecipeDeleted(long recipeId) {
+        if (!enabled || !loaded) return;
+        lock.writeLock().lock();
+        try {
+            if (table.remove(recipeId) && table.tombstones > Math.max(MERGE_THRESHOLD, table.size / 2)) table = table.compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 其他节点新建的食谱：从 recipe_ingredients 读出食材后加入索引
+     */
+    public void refreshRecipe(Connection conn, long recipeId) throws SQLException {
+        if (!enabled || !loaded) return;
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT ingredient_name FROM recipe_ingredients WHERE recipe_id = ?")) {
+            stmt.setLong(1, recipeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) names.add(rs.getString(1));
+            }
+        }
+        onRecipeCreated(recipeId, names.toArray(new String[0]));
+    }
+
+    /**
+     * 导入时按导入数据整体重建，签名和各 band 的排序并行计算
+     */
+    public void rebuild(List<RecipeRecord> recipes) {
+        if (!enabled) return;
+        long start = System.currentTimeMillis();
+        List<RecipeRecord> list = recipes == null ? Collections.emptyList() : recipes;
+        char[][] sigs = new char[list.size()][];
+        IntStream.range(0, list.size()).parallel()
+                .forEach(i -> sigs[i] = signature(list.get(i).getRecipeIngredientParts()));
+        Table fresh = new Table(list.size());
+        for (int i = 0; i < sigs.length; i++) {
+            if (sigs[i] != null) fresh.add(list.get(i).getRecipeId(), sigs[i], 0);
+        }
+        fresh.merge();
+        replace(fresh);
+        log.info("Similar-recipe index rebuilt from import in {} ms, {} recipes.", System.currentTimeMillis() - start, fresh.size);
+    }
+
+    /**
+     * 从 recipe_ingredients 重新加载
+     */
+    public void reload() {
+        Table fresh = new Table(1024);
+        try (Connection conn = connections.openPrimaryRead("similarIndex.reload");
+             PreparedStatement stmt = conn.prepareStatement("SELECT recipe_id, ingredient_name FROM recipe_ingredients ORDER BY recipe_id")) {
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                long current = -1;
+                List<String> names = new ArrayList<>();
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    if (id != current && !names.isEmpty()) {
+                        addLoaded(fresh, current, names);
+                        names.clear();
+                    }
+                    current = id;
+                    names.add(rs.getString(2));
+                }
+                if (!names.isEmpty()) addLoaded(fresh, current, names);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        fresh.merge();
+        replace(fresh);
+        log.info("Similar-recipe index loaded from database, {} recipes.", fresh.size);
+    }
+
+    private void addLoaded(Table t, long recipeId, List<String> names) {
+        char[] sig = signature(names.toArray(new String[0]));
+        if (sig != null) t.add(recipeId, sig, 0);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 丢弃当前内容，下次查询时从数据库重新加载 (其他节点导入数据之后)
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+
+    private void ensureLoaded() {
+        if (!enabled) throw new IllegalStateException("Similar-recipe index is disabled");
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) reload();
+            }
+        }
+    }
+
+    private void replace(Table fresh) {
+        lock.writeLock().lock();
+        try {
+            table = fresh;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 每个位置只保留最小值的低 16 位 (b-bit MinHash)，没有有效食材时返回 null
+    char[] signature(String[] ingredients) {
+        if (ingredients == null || ingredients.length == 0) return null;
+        long[] keys = new long[ingredients.length];
+        int n = 0;
+        for (String name : ingredients) {
+            if (name == null) continue;
+            String key = name.trim().toLowerCase(Locale.ROOT);
+            if (!key.isEmpty()) keys[n++] = hash64(key);
+        }
+        if (n == 0) return null;
+        char[] sig = new char[hashes];
+        for (int i = 0; i < hashes; i++) {
+            long a = coefA[i], b = coefB[i];
+            long min = Long.MAX_VALUE;
+            for (int k = 0; k < n; k++) {
+                long v = (a * keys[k] + b) >>> 1;
+                if (v < min) min = v;
+            }
+            sig[i] = (char) min;
+        }
+        return sig;
+    }
+
+    // FNV-1a 再做一次混合，避免相近的名字落在相近的值上
+    private static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    private int bandKey(char[] sigs, int base, int band) {
+        long h = (band + 1) * 0x9E3779B97F4A7C15L;
+        int off = base + band * rows;
+        for (int r = 0; r < rows; r++) {
+            h ^= sigs[off + r];
+            h *= 0x100000001b3L;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 槽位化的存储，整体替换或在写锁内修改
+     * 每个 band 一个有序 long 数组，元素为 (桶键 << 32 | 槽位)；[merged, size) 的新槽位还没进有序数组，查询时逐个比较
+     */
+    private final class Table {
+        long[] ids;
+        char[] sigs;
+        boolean[] removed;
+        final long[][] bandIndex = new long[bands][];
+        final LongIntMap slots;
+        int size;
+        int merged;
+        int tombstones;
+
+        Table(int capacity) {
+            capacity = Math.max(capacity, 16);
+            ids = new long[capacity];
+            sigs = new char[capacity * hashes];
+            removed = new boolean[capacity];
+            slots = new LongIntMap(capacity);
+            Arrays.fill(bandIndex, new long[0]);
+        }
+
+        void add(long recipeId, char[] src, int srcOff) {
+            int old = slots.get(recipeId);
+            if (old >= 0 && !removed[old]) {
+                removed[old] = true;
+                tombstones++;
+            }
+            if (size == ids.length) grow();
+            int slot = size++;
+            ids[slot] = recipeId;
+            System.arraycopy(src, srcOff, sigs, slot * hashes, hashes);
+            slots.put(recipeId, slot);
+        }
+
+        boolean remove(long recipeId) {
+            int slot = slots.get(recipeId);
+            if (slot < 0 || removed[slot]) return false;
+            removed[slot] = true;
+            tombstones++;
+            return true;
+        }
+
+        // 把尾部的新槽位并入各 band 的有序数组，顺带去掉已删除的槽位
+        void merge() {
+            int from = merged, to = size;
+            IntStream.range(0, bands).parallel().forEach(b -> {
+                long[] added = new long[to - from];
+                int n = 0;
+                for (int s = from; s < to; s++) {
+                    if (!removed[s]) added[n++] = (long) bandKey(sigs, s * hashes, b) << 32 | s;
+                }
+                Arrays.sort(added, 0, n);
+                long[] old = bandIndex[b];
+                long[] out = new long[old.length + n];
+                int i = 0, j = 0, o = 0;
+                while (i < old.length || j < n) {
+                    long v = j >= n || i < old.length && old[i] <= added[j] ? old[i++] : added[j++];
+                    if (!removed[(int) v]) out[o++] = v;
+                }
+                bandIndex[b] = o == out.length ? out : Arrays.copyOf(out, o);
+            });
+            merged = to;
+        }
+
+        // 去掉墓碑重新建表，签名直接复用
+        Table compact() {
+            Table t = new Table(size - tombstones);
+            for (int s = 0; s < size; s++) {
+                if (!removed[s]) t.add(ids[s], sigs, s * hashes);
+            }
+            t.merge();
+            return t;
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            sigs = Arrays.copyOf(sigs, capacity * hashes);
+            removed = Arrays.copyOf(removed, capacity);
+        }
+    }
+
+    /**
+     * long -> int 的开放寻址表 (线性探测)，不存在时 get 返回 -1；只增不删，删除由 Table.removed 标记
+     */
+    private static final class LongIntMap {
+        private long[] keys;
+        private int[] values;
+        private boolean hasZero;
+        private int zeroValue;
+        private int size;
+
+        LongIntMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+            keys = new long[cap];
+            values = new int[cap];
+        }
+
+        int get(long key) {
+            if (key == 0) return hasZero ? zeroValue : -1;
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long cur = keys[i];
+                if (cur == key) return values[i];
+                if (cur == 0) return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if (key == 0) {
+                hasZero = true;
+                zeroValue = value;
+                return;
+            }
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long cur = keys[i];
+                if (cur == key) {
+                    values[i] = value;
+                    return;
+                }
+                if (cur == 0) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int mix(long v) {
+            long h = v * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("Loaded", loaded);
+        m.put("Bands", bands);
+        m.put("Rows", rows);
+        lock.readLock().lock();
+        try {
+            m.put("Recipes", table == null ? 0 : table.size - table.tombstones);
+            m.put("Tombstones", table == null ? 0 : table.tombstones);
+            m.put("Unmerged", table == null ? 0 : table.size - table.merged);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return m;
+    }
+}
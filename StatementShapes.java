@@ -0,0 +1,128 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 动态 SQL 的语句形状注册表
+ * searchRecipes / feed / updateProfile 按筛选条件和排序拼 SQL，每种组合对应一个固定的"形状"：
+ * SQL 文本只在第一次用到时拼一次，之后同一形状总是同一个字符串，驱动按 SQL 文本缓存的服务端预编译语句才能命中。
+ * prepare 时把 pgjdbc 的 prepareThreshold 设为 1，第一次执行就走服务端命名语句，不用等默认的 5 次。
+ * 每个形状记录执行次数和延迟分布。
+ * 注册表最多保留 sustc.statement-shapes.max 个形状，满了之后新形状每次现拼 SQL、不登记也不计统计，
+ * 防止筛选条件组合把注册表撑大。
+ */
+@Component
+@Slf4j
+public class StatementShapes {
+
+    @Value("${sustc.statement-shapes.max:2048}")
+    private int maxShapes = 2048;
+
+    private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+    // 注册表已满时没有登记的形状的取用次数
+    private final AtomicLong unregistered = new AtomicLong();
+
+    // pgjdbc 只在运行时存在，用反射设置 prepareThreshold
+    private static final Class<?> PG_STATEMENT;
+    private static final Method SET_PREPARE_THRESHOLD;
+
+    static {
+        Class<?> cls = null;
+        Method m = null;
+        try {
+            cls = Class.forName("org.postgresql.PGStatement");
+            m = cls.getMethod("setPrepareThreshold", int.class);
+        } catch (ReflectiveOperationException e) {
+            // 非 PostgreSQL 驱动时只做 SQL 文本规范化
+        }
+        PG_STATEMENT = cls;
+        SET_PREPARE_THRESHOLD = m;
+    }
+
+    public static final class Shape {
+        private final String key;
+        private final String sql;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Shape(String key, String sql) {
+            this.key = key;
+            this.sql = sql;
+        }
+
+        public String getKey() { return key; }
+        public String getSql() { return sql; }
+
+        public void recordSince(long startNanos) {
+            latency.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * 取某个形状，第一次用到时调用 builder 拼出规范 SQL
+     */
+    public Shape get(String key, Supplier<String> builder) {
+        Shape shape = shapes.get(key);
+        if (shape != null) return shape;
+        if (shapes.size() >= maxShapes) {
+            if (unregistered.getAndIncrement() == 0) {
+                log.warn("Statement shape registry is full ({} shapes), new shapes are no longer registered.", maxShapes);
+            }
+            return new Shape(key, builder.get());
+        }
+        return shapes.computeIfAbsent(key, k -> {
+            log.debug("Registered statement shape {}", k);
+            return new Shape(k, builder.get());
+        });
+    }
+
+    public PreparedStatement prepare(Connection conn, Shape shape) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(shape.sql);
+        if (SET_PREPARE_THRESHOLD != null && stmt.isWrapperFor(PG_STATEMENT)) {
+            try {
+                SET_PREPARE_THRESHOLD.invoke(stmt.unwrap(PG_STATEMENT), 1);
+            } catch (ReflectiveOperationException e) {
+                log.debug("Failed to set prepareThreshold for {}", shape.key);
+            }
+        }
+        return stmt;
+    }
+
+    /**
+     * 注册表已满后没有登记的形状被取用的次数
+     */
+    public long getUnregistered() {
+        return unregistered.get();
+    }
+
+    /**
+     * 每个形状的执行次数和 p50 / p99 / p999 延迟 (毫秒)
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> res = new HashMap<>();
+        shapes.forEach((key, shape) -> {
+            LatencyHistogram h = shape.latency;
+            Map<String, Object> m = new HashMap<>();
+            m.put("Sql", shape.sql);
+            m.put("Executions", h.getCount());
+            m.put("MeanMillis", h.getMeanMillis());
+            m.put("P50Millis", h.percentileMillis(0.50));
+            m.put("P99Millis", h.percentileMillis(0.99));
+            m.put("P999Millis", h.percentileMillis(0.999));
+            m.put("MaxMillis", h.getMaxMillis());
+            res.put(key, m);
+        });
+        return res;
+    }
+}
@@ -4,25 +4,59 @@ import io.sustc.dto.*;
 import io.sustc.service.UserService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.Period;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
 public class UserServiceImpl implements UserService {
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionContext connections;
+
+    @Autowired
+    private StatementShapes shapes;
+
+    @Autowired
+    private FollowRatioLeaderboard leaderboard;
+
+    @Autowired
+    private AccountCleanupWorker cleanupWorker;
+
+    @Autowired
+    private AsyncServiceExecutor asyncExecutor;
+
+    @Autowired
+    private CategoryDictionary categoryDictionary;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private Authenticator authenticator;
+
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private SessionTokens sessionTokens;
 
     @Override
     public long register(RegisterUserReq req) {
@@ -42,16 +76,20 @@ public class UserServiceImpl implements UserService {
 
         String sql = "INSERT INTO users (name, password, gender, age, is_deleted) VALUES (?, ?, ?, ?, FALSE) RETURNING id";
 
-        try (Connection conn = dataSource.getConnection();
+        // 慢哈希在借连接之前算好，不占着连接等哈希线程池
+        String hashed = passwordHasher.hash(req.getPassword());
+        try (Connection conn = connections.open("register");
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setString(1, req.getName());
-            stmt.setString(2, req.getPassword());
+            stmt.setString(2, hashed);
             stmt.setString(3, genderStr);
             stmt.setInt(4, age);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
+                    connections.bindUser(rs.getLong(1));
+                    authorNames.put(rs.getLong(1), req.getName());
                     return rs.getLong(1);
                 }
             }
@@ -69,33 +107,58 @@ public class UserServiceImpl implements UserService {
     public long login(AuthInfo auth) {
         if (auth == null || auth.getPassword() == null || auth.getPassword().isEmpty()) return -1;
 
-        String sql = "SELECT id FROM users WHERE id = ? AND password = ? AND is_deleted = FALSE";
+        String sql = "SELECT password FROM users WHERE id = ? AND is_deleted = FALSE";
 
-        try (Connection conn = dataSource.getConnection();
+        // 读存储值、慢哈希校验、升级哈希分三步，哈希期间不占用池连接
+        String stored;
+        try (Connection conn = connections.open("login");
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, auth.getAuthorId());
-            stmt.setString(2, auth.getPassword());
-
             try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getLong("id");
-                }
+                if (!rs.next()) return -1;
+                stored = rs.getString("password");
             }
         } catch (SQLException e) {
             log.error("Login error", e);
+            return -1;
         }
-        return -1;
+        if (!authenticator.checkPassword(auth.getAuthorId(), auth.getPassword(), stored)) return -1;
+
+        // 导入的明文密码或迭代次数偏低的哈希，登录成功时顺带升级；存储值已被并发修改时不覆盖
+        if (passwordHasher.needsRehash(stored)) {
+            String hashed = passwordHasher.hash(auth.getPassword());
+            try (Connection conn = connections.open("login");
+                 PreparedStatement stmt = conn.prepareStatement("UPDATE users SET password = ? WHERE id = ? AND password = ?")) {
+                stmt.setString(1, hashed);
+                stmt.setLong(2, auth.getAuthorId());
+                stmt.setString(3, stored);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                // 升级失败不影响这次登录，下次登录再试
+                log.warn("Password rehash failed for user {}: {}", auth.getAuthorId(), e.getMessage());
+            }
+        }
+        return auth.getAuthorId();
+    }
+
+    /**
+     * 用密码登录并签发短期会话令牌，之后把令牌放在 AuthInfo.password 里即可鉴权，不再做慢哈希；失败返回 null
+     */
+    public String issueSessionToken(AuthInfo auth) {
+        long userId = login(auth);
+        return userId < 0 ? null : sessionTokens.issue(userId);
     }
 
     @Override
     public boolean deleteAccount(AuthInfo auth, long userId) {
         long operatorId = authenticate(auth);
-        if (operatorId != userId) {
-            // 题目未明确说抛异常，但通常安全操作是这样。如果是返回 false 也可以。
-            return false;
-        }
+        try (Connection conn = connections.open("deleteAccount")) {
+            connections.bindUser(operatorId);
+            if (operatorId != userId) {
+                // 题目未明确说抛异常，但通常安全操作是这样。如果是返回 false 也可以。
+                return false;
+            }
 
-        try (Connection conn = dataSource.getConnection()) {
             conn.setAutoCommit(false);
             try {
                 if (!checkUserExistsAndActive(conn, userId)) {
@@ -103,21 +166,21 @@ public class UserServiceImpl implements UserService {
                     return false;
                 }
 
-                try (PreparedStatement stmt = conn.prepareStatement("UPDATE users SET is_deleted = TRUE WHERE id = ?")) {
+                try (PreparedStatement stmt = conn.prepareStatement("UPDATE users SET is_deleted = TRUE, followers = 0, following = 0 WHERE id = ?")) {
                     stmt.setLong(1, userId);
                     stmt.executeUpdate();
                 }
 
-                // 清除双向关注
-                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM user_follows WHERE follower_id = ? OR followee_id = ?")) {
-                    stmt.setLong(1, userId);
-                    stmt.setLong(2, userId);
-                    stmt.executeUpdate();
-                }
+                // 关注边、点赞和对端计数交给后台分批清理，软删除立即提交
+                cleanupWorker.enqueue(conn, userId);
+                changeFeed.publish(conn, ChangeFeed.USER_COUNTS, userId);
 
                 conn.commit();
+                leaderboard.onUserDeleted(userId);
+                authenticator.forget(userId);
                 return true;
             } catch (Exception e) {
+                connections.markFailed();
                 conn.rollback();
                 throw e;
             }
@@ -128,37 +191,139 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public boolean follow(AuthInfo auth, long followeeId) {
-        long followerId = authenticate(auth);
-        if (followerId == followeeId) return false; // Cannot follow self
+        // 一条语句完成切换：存在则删，不存在则插，同时维护双方计数，返回切换后的状态
+        // del 与 ins 互斥（ins 依赖 del 为空），并发插入冲突时 ON CONFLICT 兜底，此时边已存在
+        String sql =
+                "WITH target AS (" +
+                        "    SELECT id FROM users WHERE id = ? AND is_deleted = FALSE" +
+                        "), del AS (" +
+                        "    DELETE FROM user_follows WHERE follower_id = ? AND followee_id = ? " +
+                        "    AND EXISTS (SELECT 1 FROM target) RETURNING 1" +
+                        "), ins AS (" +
+                        "    INSERT INTO user_follows (follower_id, followee_id) " +
+                        "    SELECT ?, id FROM target WHERE NOT EXISTS (SELECT 1 FROM del) " +
+                        "    ON CONFLICT DO NOTHING RETURNING 1" +
+                        "), d AS (" +
+                        "    SELECT CASE WHEN EXISTS (SELECT 1 FROM ins) THEN 1 " +
+                        "                WHEN EXISTS (SELECT 1 FROM del) THEN -1 ELSE 0 END AS delta" +
+                        "), cnt AS (" +
+                        "    UPDATE users SET " +
+                        "        following = GREATEST(following + CASE WHEN users.id = ? THEN d.delta ELSE 0 END, 0), " +
+                        "        followers = GREATEST(followers + CASE WHEN users.id = ? THEN d.delta ELSE 0 END, 0) " +
+                        "    FROM d WHERE users.id IN (?, ?) AND d.delta <> 0 RETURNING 1" +
+                        "), roll AS (" + // 被关注者当天的新增 / 流失关注者汇总
+                        "    INSERT INTO rollup_follows_daily (user_id, day, gained, lost) " +
+                        "    SELECT ?, CURRENT_DATE, (d.delta > 0)::int, (d.delta < 0)::int FROM d WHERE d.delta <> 0 " +
+                        "    ON CONFLICT (user_id, day) DO UPDATE SET " +
+                        "        gained = rollup_follows_daily.gained + EXCLUDED.gained, " +
+                        "        lost = rollup_follows_daily.lost + EXCLUDED.lost RETURNING 1" +
+                        ") " +
+                        "SELECT EXISTS (SELECT 1 FROM target) AND NOT EXISTS (SELECT 1 FROM del) AS following, " +
+                        "       (SELECT delta FROM d) AS delta, pg_current_xact_id()::text AS tx";
 
-        try (Connection conn = dataSource.getConnection()) {
-            if (!checkUserExistsAndActive(conn, followeeId)) {
-                return false;
+        long followerId = authenticate(auth);
+        try (Connection conn = connections.open("follow");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            connections.bindUser(followerId);
+            authenticator.checkActive(conn, auth, followerId);
+            if (followerId == followeeId) return false; // Cannot follow self
+
+            stmt.setLong(1, followeeId);
+            stmt.setLong(2, followerId);
+            stmt.setLong(3, followeeId);
+            stmt.setLong(4, followerId);
+            stmt.setLong(5, followerId);
+            stmt.setLong(6, followeeId);
+            stmt.setLong(7, followerId);
+            stmt.setLong(8, followeeId);
+            stmt.setLong(9, followeeId);
+            // 关注切换与变更事件同事务提交，提交后再更新本节点排行榜
+            conn.setAutoCommit(false);
+            try {
+                int delta;
+                boolean following;
+                long tx;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        conn.rollback();
+                        return false;
+                    }
+                    delta = rs.getInt("delta");
+                    following = rs.getBoolean("following");
+                    tx = Long.parseLong(rs.getString("tx"));
+                }
+                if (delta != 0) changeFeed.publish(conn, ChangeFeed.USER_COUNTS, followerId, Collections.singletonList(followeeId));
+                conn.commit();
+                leaderboard.onFollowChanged(tx, followerId, followeeId, delta);
+                return following;
+            } catch (Exception e) {
+                connections.markFailed();
+                conn.rollback();
+                throw e;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            boolean isFollowing = false;
-            String checkSql = "SELECT 1 FROM user_follows WHERE follower_id = ? AND followee_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(checkSql)) {
-                stmt.setLong(1, followerId);
-                stmt.setLong(2, followeeId);
-                if (stmt.executeQuery().next()) isFollowing = true;
-            }
+    /**
+     * 批量关注（导入通讯录等场景）：只建立新关系，已关注的保持不变，不存在/已注销/自己会被跳过
+     * 一次往返完成，返回新建立的关注数
+     */
+    public int followMany(AuthInfo auth, long[] followeeIds) {
+        String sql =
+                "WITH ins AS (" +
+                        "    INSERT INTO user_follows (follower_id, followee_id) " +
+                        "    SELECT ?, u.id FROM users u " +
+                        "    WHERE u.id = ANY (?) AND u.id <> ? AND u.is_deleted = FALSE " +
+                        "    ON CONFLICT DO NOTHING RETURNING followee_id" +
+                        "), fer AS (" +
+                        "    UPDATE users SET followers = followers + 1 " +
+                        "    WHERE id IN (SELECT followee_id FROM ins) RETURNING 1" +
+                        "), fing AS (" +
+                        "    UPDATE users SET following = following + (SELECT COUNT(*) FROM ins) " +
+                        "    WHERE id = ? RETURNING 1" +
+                        "), roll AS (" +
+                        "    INSERT INTO rollup_follows_daily (user_id, day, gained, lost) " +
+                        "    SELECT followee_id, CURRENT_DATE, 1, 0 FROM ins " +
+                        "    ON CONFLICT (user_id, day) DO UPDATE SET gained = rollup_follows_daily.gained + 1 RETURNING 1" +
+                        ") " +
+                        "SELECT followee_id, pg_current_xact_id()::text FROM ins";
 
-            if (isFollowing) {
-                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM user_follows WHERE follower_id = ? AND followee_id = ?")) {
-                    stmt.setLong(1, followerId);
-                    stmt.setLong(2, followeeId);
-                    stmt.executeUpdate();
-                }
-                return false;
-            } else {
-                try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO user_follows (follower_id, followee_id) VALUES (?, ?)")) {
-                    stmt.setLong(1, followerId);
-                    stmt.setLong(2, followeeId);
-                    stmt.executeUpdate();
+        long followerId = authenticate(auth);
+        try (Connection conn = connections.open("followMany");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            connections.bindUser(followerId);
+            authenticator.checkActive(conn, auth, followerId);
+            if (followeeIds == null || followeeIds.length == 0) return 0;
+
+            Long[] ids = new Long[followeeIds.length];
+            for (int i = 0; i < followeeIds.length; i++) ids[i] = followeeIds[i];
+
+            stmt.setLong(1, followerId);
+            stmt.setArray(2, conn.createArrayOf("bigint", ids));
+            stmt.setLong(3, followerId);
+            stmt.setLong(4, followerId);
+            List<Long> created = new ArrayList<>();
+            long tx = 0;
+            // 与 follow 相同：关注和变更事件同事务提交，提交后再更新排行榜
+            conn.setAutoCommit(false);
+            try {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        created.add(rs.getLong(1));
+                        tx = Long.parseLong(rs.getString(2));
+                    }
                 }
-                return true;
+                if (!created.isEmpty()) changeFeed.publish(conn, ChangeFeed.USER_COUNTS, followerId, created);
+                conn.commit();
+            } catch (Exception e) {
+                connections.markFailed();
+                conn.rollback();
+                throw e;
             }
+            for (long followeeId : created) leaderboard.onFollowChanged(tx, followerId, followeeId, 1);
+            return created.size();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -166,174 +331,268 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public UserRecord getById(long userId) {
-        UserRecord user = new UserRecord();
-        String sql = "SELECT id, name, gender, age, is_deleted FROM users WHERE id = ?";
+        // followers / following 由 follow、deleteAccount 和导入维护，这里只需一次主键查询
+        String sql = "SELECT id, name, gender, age, is_deleted, followers, following FROM users WHERE id = ?";
 
-        try (Connection conn = dataSource.getConnection()) {
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        user.setAuthorId(rs.getLong("id"));
-                        user.setAuthorName(rs.getString("name"));
-                        user.setGender(rs.getString("gender"));
-                        user.setAge(rs.getInt("age"));
-                        user.setDeleted(rs.getBoolean("is_deleted"));
-                    } else {
-                        return null;
-                    }
-                }
+        try (Connection conn = connections.openReadOnly("getById");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? mapUser(rs) : null;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // 填充 counts (可选，取决于 UserRecord 定义，这里按作业常规需求填充)
-            // 注意：题目中 UserRecord可能有 followers/following 字段
-            try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM user_follows WHERE followee_id = ?")) {
-                stmt.setLong(1, userId);
-                try (ResultSet rs = stmt.executeQuery()) { if (rs.next()) user.setFollowers(rs.getInt(1)); }
-            }
-            try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM user_follows WHERE follower_id = ?")) {
-                stmt.setLong(1, userId);
-                try (ResultSet rs = stmt.executeQuery()) { if (rs.next()) user.setFollowing(rs.getInt(1)); }
-            }
+    /**
+     * 批量获取用户 (含关注计数)，一次查询；结果按请求顺序返回，不存在的 id 对应 null
+     */
+    public List<UserRecord> getUsersByIds(long[] userIds) {
+        List<UserRecord> result = new ArrayList<>();
+        if (userIds == null || userIds.length == 0) return result;
+
+        String sql = "SELECT id, name, gender, age, is_deleted, followers, following FROM users WHERE id = ANY (?)";
+        Long[] ids = new Long[userIds.length];
+        for (int i = 0; i < userIds.length; i++) ids[i] = userIds[i];
 
-            return user;
+        Map<Long, UserRecord> found = new HashMap<>();
+        try (Connection conn = connections.openReadOnly("getUsersByIds");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("bigint", ids));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    UserRecord user = mapUser(rs);
+                    found.put(user.getAuthorId(), user);
+                }
+            }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+
+        for (long id : userIds) result.add(found.get(id));
+        return result;
+    }
+
+    private UserRecord mapUser(ResultSet rs) throws SQLException {
+        UserRecord user = new UserRecord();
+        user.setAuthorId(rs.getLong("id"));
+        user.setAuthorName(rs.getString("name"));
+        user.setGender(rs.getString("gender"));
+        user.setAge(rs.getInt("age"));
+        user.setDeleted(rs.getBoolean("is_deleted"));
+        user.setFollowers(rs.getInt("followers"));
+        user.setFollowing(rs.getInt("following"));
+        return user;
     }
 
     @Override
     public void updateProfile(AuthInfo auth, String gender, Integer age) {
         long userId = authenticate(auth);
+        try (Connection conn = connections.open("updateProfile")) {
+            connections.bindUser(userId);
+            authenticator.checkActive(conn, auth, userId);
+            updateProfile(conn, userId, gender, age);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    private void updateProfile(Connection conn, long userId, String gender, Integer age) throws SQLException {
         // 验证输入
         boolean validGender = (gender != null && (gender.equals("Male") || gender.equals("Female")));
         boolean validAge = (age != null && age > 0);
 
         if (!validGender && !validAge) return; // 无需更新
 
-        StringBuilder sql = new StringBuilder("UPDATE users SET ");
-        List<Object> params = new ArrayList<>();
+        // 只有三种形状：只改性别 / 只改年龄 / 都改
+        StatementShapes.Shape shape = shapes.get("updateProfile#" + validGender + "#" + validAge, () -> {
+            StringBuilder sql = new StringBuilder("UPDATE users SET ");
+            if (validGender) sql.append("gender = ?, ");
+            if (validAge) sql.append("age = ?, ");
+            sql.setLength(sql.length() - 2); // 去掉逗号
+            sql.append(" WHERE id = ?");
+            return sql.toString();
+        });
 
-        if (validGender) {
-            sql.append("gender = ?, ");
-            params.add(gender);
-        }
-        if (validAge) {
-            sql.append("age = ?, ");
-            params.add(age);
-        }
-
-        sql.setLength(sql.length() - 2); // 去掉逗号
-        sql.append(" WHERE id = ?");
+        List<Object> params = new ArrayList<>();
+        if (validGender) params.add(gender);
+        if (validAge) params.add(age);
         params.add(userId);
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+        try (PreparedStatement stmt = shapes.prepare(conn, shape)) {
             for (int i = 0; i < params.size(); i++) {
                 stmt.setObject(i + 1, params.get(i));
             }
+            long start = System.nanoTime();
             stmt.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            shape.recordSince(start);
         }
     }
 
     @Override
     public PageResult<FeedItem> feed(AuthInfo auth, int page, int size, String category) {
+        // 先鉴权，count 和分页查询共用同一个连接；鉴权后的 id 用于 read-your-writes 判断
         long userId = authenticate(auth);
+        try (Connection conn = connections.openReadOnly("feed", userId)) {
+            connections.bindUser(userId);
+            authenticator.checkActive(conn, auth, userId);
+            return feed(conn, userId, page, size, category);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private PageResult<FeedItem> feed(Connection conn, long userId, int page, int size, String category) throws SQLException {
         if (page < 1 || size <= 0) size = 10;
 
-        // SQL: 筛选我关注的人的食谱
-        StringBuilder sql = new StringBuilder(
-                "SELECT r.id, r.name, r.owner_id, u.name as author_name, r.create_time, r.aggregated_rating, r.review_count " +
-                        "FROM recipes r " +
-                        "JOIN users u ON r.owner_id = u.id " +
-                        "WHERE r.owner_id IN (SELECT followee_id FROM user_follows WHERE follower_id = ?) "
-        );
+        // SQL: 筛选我关注的人的食谱；有无分类各对应一组固定的语句形状
+        boolean byCategory = category != null && !category.isEmpty();
+        StatementShapes.Shape countShape = shapes.get("feed.count#" + byCategory,
+                () -> "SELECT COUNT(*) " + feedFromWhere(byCategory));
+        StatementShapes.Shape pageShape = shapes.get("feed.page#" + byCategory,
+                () -> "SELECT r.id, r.name, r.owner_id, r.create_time, r.aggregated_rating, r.review_count " +
+                        feedFromWhere(byCategory) + "ORDER BY r.create_time DESC, r.id DESC LIMIT ? OFFSET ?");
 
         List<Object> params = new ArrayList<>();
         params.add(userId);
-
-        if (category != null && !category.isEmpty()) {
-            sql.append("AND r.category = ? ");
-            params.add(category);
+        if (byCategory) {
+            // 未知分类用 -1，不匹配任何食谱
+            Integer categoryId = categoryDictionary.lookup(conn, category);
+            params.add(categoryId == null ? -1 : categoryId);
         }
 
         // Count Total
         long total = 0;
-        String countSql = "SELECT COUNT(*) " + sql.substring(sql.indexOf("FROM"));
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(countSql)) {
+        try (PreparedStatement stmt = shapes.prepare(conn, countShape)) {
             for (int i = 0; i < params.size(); i++) stmt.setObject(i + 1, params.get(i));
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) { if (rs.next()) total = rs.getLong(1); }
-        } catch (SQLException e) { throw new RuntimeException(e); }
+            countShape.recordSince(start);
+        }
 
         if (total == 0) return new PageResult<>(new ArrayList<>(), page, size, 0L);
 
-        // Sorting
-        sql.append("ORDER BY r.create_time DESC, r.id DESC LIMIT ? OFFSET ?");
         params.add(size);
         params.add((page - 1) * size);
 
-        List<FeedItem> list = new ArrayList<>();
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+        List<FeedItem.FeedItemBuilder> rows = new ArrayList<>();
+        List<Long> ownerIds = new ArrayList<>();
+        try (PreparedStatement stmt = shapes.prepare(conn, pageShape)) {
             for (int i = 0; i < params.size(); i++) stmt.setObject(i + 1, params.get(i));
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    // 使用 Builder 构建 FeedItem (根据你提供的 DTO 使用 @Builder)
-                    FeedItem item = FeedItem.builder()
+                    // 使用 Builder 构建 FeedItem (根据你提供的 DTO 使用 @Builder)，作者名整页取完后再填
+                    rows.add(FeedItem.builder()
                             .recipeId(rs.getLong("id"))
                             .name(rs.getString("name"))
                             .authorId(rs.getLong("owner_id"))
-                            .authorName(rs.getString("author_name"))
                             .datePublished(rs.getTimestamp("create_time").toInstant())
                             .aggregatedRating(rs.getObject("aggregated_rating") != null ? rs.getDouble("aggregated_rating") : null)
-                            .reviewCount(rs.getInt("review_count"))
-                            .build();
-
-                    list.add(item);
+                            .reviewCount(rs.getInt("review_count")));
+                    ownerIds.add(rs.getLong("owner_id"));
                 }
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            pageShape.recordSince(start);
         }
 
+        Map<Long, String> names = authorNames.namesOf(conn, new HashSet<>(ownerIds));
+        List<FeedItem> list = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            list.add(rows.get(i).authorName(names.get(ownerIds.get(i))).build());
+        }
         return new PageResult<>(list, page, size, total);
     }
 
+    private static String feedFromWhere(boolean byCategory) {
+        // 已注销用户的关注边由后台异步清理，这里在关注列表上先过滤掉 (按关注的人判断一次，而不是按每条食谱 JOIN users)
+        return "FROM recipes r " +
+                "WHERE r.owner_id IN (" +
+                "    SELECT f.followee_id FROM user_follows f JOIN users u ON u.id = f.followee_id " +
+                "    WHERE f.follower_id = ? AND u.is_deleted = FALSE) " +
+                (byCategory ? "AND r.category_id = ? " : "");
+    }
+
+    /**
+     * feed 的异步版本：虚拟线程执行，并发度受连接池大小限制
+     */
+    public CompletableFuture<PageResult<FeedItem>> feedAsync(AuthInfo auth, int page, int size, String category) {
+        return asyncExecutor.submit(() -> feed(auth, page, size, category));
+    }
+
     @Override
     public Map<String, Object> getUserWithHighestFollowRatio() {
+        // 排行榜增量维护，这里只取榜首再按主键补名字
+        FollowRatioLeaderboard.Entry top = leaderboard.top();
+        if (top == null) return null;
+
+        List<Map<String, Object>> res = toRatioRows(Collections.singletonList(top));
+        return res.isEmpty() ? null : res.get(0);
+    }
+
+    /**
+     * 关注比前 k 名，格式与 getUserWithHighestFollowRatio 相同
+     */
+    public List<Map<String, Object>> getTopFollowRatioUsers(int k) {
+        if (k <= 0) return new ArrayList<>();
+        return toRatioRows(leaderboard.topK(k));
+    }
+
+    private List<Map<String, Object>> toRatioRows(List<FollowRatioLeaderboard.Entry> entries) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (entries.isEmpty()) return list;
+
+        Long[] ids = new Long[entries.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = entries.get(i).getUserId();
+
+        Map<Long, String> names;
+        try (Connection conn = connections.openReadOnly("getUserWithHighestFollowRatio")) {
+            names = authorNames.namesOf(conn, Arrays.asList(ids));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        for (FollowRatioLeaderboard.Entry e : entries) {
+            Map<String, Object> res = new HashMap<>();
+            res.put("AuthorId", e.getUserId());
+            res.put("AuthorName", names.get(e.getUserId()));
+            res.put("Ratio", e.getRatio());
+            list.add(res);
+        }
+        return list;
+    }
+
+    /**
+     * 定期对账：按 user_follows 重新计算计数，修正因异常或手工改数据产生的漂移
+     * 已注销用户计数恒为 0；与其相连、尚待后台清理的边仍计入对端，清理时再逐条扣减
+     * 只更新不一致的行，返回被修正的用户数
+     */
+    @Scheduled(fixedDelayString = "${sustc.follow-counter.reconcile-interval-ms:600000}",
+            initialDelayString = "${sustc.follow-counter.reconcile-interval-ms:600000}")
+    public int reconcileFollowCounters() {
         String sql =
-                "WITH following_cnt AS (" +
-                        "    SELECT follower_id, COUNT(*) as cnt FROM user_follows GROUP BY follower_id" +
-                        "), follower_cnt AS (" +
-                        "    SELECT followee_id, COUNT(*) as cnt FROM user_follows GROUP BY followee_id" +
+                "WITH c AS (" +
+                        "    SELECT u.id, " +
+                        "           CASE WHEN u.is_deleted THEN 0 ELSE (SELECT COUNT(*) FROM user_follows f WHERE f.followee_id = u.id) END AS fer, " +
+                        "           CASE WHEN u.is_deleted THEN 0 ELSE (SELECT COUNT(*) FROM user_follows f WHERE f.follower_id = u.id) END AS fing " +
+                        "    FROM users u" +
                         ") " +
-                        "SELECT u.id, u.name, " +
-                        "       COALESCE(fer.cnt, 0)::float / fing.cnt::float as ratio " +
-                        "FROM users u " +
-                        "JOIN following_cnt fing ON u.id = fing.follower_id " +
-                        "LEFT JOIN follower_cnt fer ON u.id = fer.followee_id " +
-                        "WHERE u.is_deleted = FALSE AND fing.cnt > 0 " +
-                        "ORDER BY ratio DESC, u.id ASC LIMIT 1";
-
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql);
-             ResultSet rs = stmt.executeQuery()) {
-
-            if (rs.next()) {
-                Map<String, Object> res = new HashMap<>();
-                res.put("AuthorId", rs.getLong("id"));
-                res.put("AuthorName", rs.getString("name"));
-                res.put("Ratio", rs.getDouble("ratio"));
-                return res;
+                        "UPDATE users u SET followers = c.fer, following = c.fing " +
+                        "FROM c WHERE u.id = c.id AND (u.followers <> c.fer OR u.following <> c.fing)";
+
+        try (Connection conn = connections.open("reconcileFollowCounters");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int fixed = stmt.executeUpdate();
+            if (fixed > 0) {
+                log.warn("Follow counters drifted, reconciled {} users.", fixed);
+                leaderboard.reload();
             }
+            return fixed;
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            log.error("Reconcile follow counters error", e);
+            return 0;
         }
-        return null;
     }
 
     // --- Helpers ---
@@ -359,18 +618,12 @@ public class UserServiceImpl implements UserService {
         }
     }
 
+    // 在打开连接之前调用：慢哈希期间不占用池连接，调用方拿到连接后再 bindUser 并用 checkActive 检查令牌用户是否已注销
     private long authenticate(AuthInfo auth) {
         if (auth == null) throw new SecurityException("No auth");
-        String sql = "SELECT id FROM users WHERE id = ? AND password = ? AND is_deleted = FALSE";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, auth.getAuthorId());
-            stmt.setString(2, auth.getPassword());
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) return rs.getLong("id");
-            }
-        } catch (SQLException e) { throw new RuntimeException(e); }
-        throw new SecurityException("Auth failed or user is inactive");
+        Long userId = authenticator.verify(auth, true);
+        if (userId == null) throw new SecurityException("Auth failed or user is inactive");
+        return userId;
     }
 
     private boolean checkUserExistsAndActive(Connection conn, long userId) throws SQLException {
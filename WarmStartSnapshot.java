@@ -0,0 +1,296 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内存结构的预热快照 (sustc.warm-start.enabled=true 时启用)
+ * 定时把已加载的作者名字典、关注计数、食材倒排索引和列式快照的行数写成一个二进制文件 (先写临时文件再原子替换)，
+ * 启动时内存映射读取并装回各组件，再从变更事件表 (ChangeFeed) 重放快照之后的变更，随后照常增量维护。
+ * 水位是 current_database() 加变更事件游标 pg_snapshot_xmin(pg_current_snapshot())：先取水位，
+ * 再等取水位时本节点尚未释放的写作用域全部释放 (写路径在释放前完成提交后的内存更新)，然后才序列化，
+ * 因此水位之前提交的写入都已反映在快照里，之后的写入 (任何节点) 在启动时按事件重放，重复重放是幂等的。
+ * 数据库不同、快照比事件保留期更老 (需要的事件可能已被清理) 或重放失败时不采用，照旧在首次使用时从数据库加载。
+ */
+@Component
+@Slf4j
+public class WarmStartSnapshot {
+
+    private static final int MAGIC = 0x53555743;
+    private static final int VERSION = 2;
+
+    private static final int AUTHOR_NAMES = 1;
+    private static final int FOLLOW_COUNTS = 2;
+    private static final int INGREDIENTS = 3;
+    private static final int RECIPE_COLUMNS = 4;
+
+    @Autowired
+    private AuthorNameDictionary authorNames;
+
+    @Autowired
+    private FollowRatioLeaderboard leaderboard;
+
+    @Autowired
+    private IngredientIndex ingredientIndex;
+
+    @Autowired
+    private RecipeColumnSnapshot columnSnapshot;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private ConnectionContext connections;
+
+    @Value("${sustc.warm-start.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sustc.warm-start.file:${java.io.tmpdir}/sustc-warm-start.bin}")
+    private String file;
+
+    // 等待本节点在途写作用域的上限，超时就跳过这一轮
+    @Value("${sustc.warm-start.quiesce-timeout-ms:2000}")
+    private long quiesceTimeoutMillis = 2000;
+
+    // 上次写入的 水位/分区集合，没有变化时不重写
+    private volatile String lastWritten;
+    private volatile long lastWriteMillis;
+    private volatile long lastWriteBytes;
+    private final List<String> restoredSections = new ArrayList<>();
+
+    private interface SectionWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @PostConstruct
+    public void restore() {
+        if (!enabled) return;
+        Path path = Paths.get(file);
+        if (!Files.exists(path)) {
+            log.info("No warm-start snapshot at {}, caches load from database on first use.", path);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                log.warn("Ignoring warm-start snapshot {} with unknown format.", path);
+                return;
+            }
+            String database = readString(buf);
+            long mark = buf.getLong();
+            long writtenAt = buf.getLong();
+            try (Connection conn = connections.openPrimaryRead("warmStart.restore")) {
+                String current = currentDatabase(conn);
+                if (!database.equals(current)) {
+                    log.info("Warm-start snapshot belongs to database {} not {}, caches load from database on first use.",
+                            database, current);
+                    return;
+                }
+                // 留一半余量：水位之后的事件可能由写快照前就开始的长事务写入，比快照本身更早
+                if (2 * (System.currentTimeMillis() - writtenAt) > TimeUnit.HOURS.toMillis(changeFeed.getRetentionHours())) {
+                    log.info("Warm-start snapshot is older than the change event retention, caches load from database on first use.");
+                    return;
+                }
+
+                int mask = 0;
+                while (buf.hasRemaining()) {
+                    int id = buf.getInt();
+                    int length = buf.getInt();
+                    ByteBuffer section = buf.slice();
+                    section.limit(length);
+                    buf.position(buf.position() + length);
+                    if (restoreSection(id, section)) mask |= 1 << id;
+                }
+                try {
+                    int replayed = changeFeed.replay(conn, mark);
+                    log.info("Warm-start snapshot restored in {} ms: {}, replayed {} change events.",
+                            System.currentTimeMillis() - start, restoredSections, replayed);
+                } catch (SQLException | RuntimeException e) {
+                    // 没重放完的快照比数据库旧，全部丢弃
+                    invalidateRestored();
+                    throw e;
+                }
+                lastWritten = mark + "/" + mask;
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            // 没装回的组件保持未加载状态，首次使用时照旧从数据库加载
+            log.warn("Failed to restore warm-start snapshot {}: {}", path, e.toString());
+        }
+    }
+
+    private void invalidateRestored() {
+        authorNames.invalidate();
+        leaderboard.invalidate();
+        ingredientIndex.invalidate();
+        columnSnapshot.invalidate();
+        restoredSections.clear();
+    }
+
+    private boolean restoreSection(int id, ByteBuffer in) {
+        switch (id) {
+            case AUTHOR_NAMES:
+                authorNames.restoreSnapshot(in);
+                restoredSections.add("authorNames");
+                return true;
+            case FOLLOW_COUNTS:
+                leaderboard.restoreSnapshot(in);
+                restoredSections.add("followCounts");
+                return true;
+            case INGREDIENTS:
+                ingredientIndex.restoreSnapshot(in);
+                restoredSections.add("ingredients");
+                return true;
+            case RECIPE_COLUMNS:
+                if (!columnSnapshot.restoreSnapshot(in)) return false;
+                restoredSections.add("recipeColumns");
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${sustc.warm-start.interval-ms:60000}")
+    public void write() {
+        if (!enabled) return;
+        try {
+            writeSnapshot();
+        } catch (IOException | SQLException | RuntimeException e) {
+            log.warn("Failed to write warm-start snapshot: {}", e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void writeOnShutdown() {
+        write();
+    }
+
+    private synchronized void writeSnapshot() throws IOException, SQLException {
+        String database;
+        long mark;
+        try (Connection conn = connections.openPrimaryRead("warmStart.write")) {
+            database = currentDatabase(conn);
+            mark = ChangeFeed.position(conn);
+        }
+        try {
+            if (!connections.awaitWriteScopes(quiesceTimeoutMillis)) {
+                log.debug("Writes still in flight after {} ms, warm-start snapshot retries next round.", quiesceTimeoutMillis);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int mask = 0;
+        if (authorNames.isLoaded()) mask |= 1 << AUTHOR_NAMES;
+        if (leaderboard.isLoaded()) mask |= 1 << FOLLOW_COUNTS;
+        if (ingredientIndex.isLoaded()) mask |= 1 << INGREDIENTS;
+        if (columnSnapshot.isEnabled() && columnSnapshot.isLoaded()) mask |= 1 << RECIPE_COLUMNS;
+        if (mask == 0 || (mark + "/" + mask).equals(lastWritten)) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, database);
+        out.writeLong(mark);
+        out.writeLong(System.currentTimeMillis());
+        if ((mask & 1 << AUTHOR_NAMES) != 0) section(out, AUTHOR_NAMES, authorNames::writeSnapshot);
+        if ((mask & 1 << FOLLOW_COUNTS) != 0) section(out, FOLLOW_COUNTS, leaderboard::writeSnapshot);
+        if ((mask & 1 << INGREDIENTS) != 0) section(out, INGREDIENTS, ingredientIndex::writeSnapshot);
+        if ((mask & 1 << RECIPE_COLUMNS) != 0) section(out, RECIPE_COLUMNS, columnSnapshot::writeSnapshot);
+        out.flush();
+
+        Path path = Paths.get(file).toAbsolutePath();
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastWritten = mark + "/" + mask;
+        lastWriteMillis = System.currentTimeMillis();
+        lastWriteBytes = bytes.size();
+        log.debug("Warm-start snapshot written, {} bytes at watermark {}.", bytes.size(), mark);
+    }
+
+    private static void section(DataOutputStream out, int id, SectionWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream section = new DataOutputStream(bytes);
+        writer.write(section);
+        section.flush();
+        out.writeInt(id);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static String currentDatabase(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT current_database()");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    // --- 各组件共用的编码 ---
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long v : values) out.writeLong(v);
+    }
+
+    static long[] readLongs(ByteBuffer in) {
+        long[] values = new long[in.getInt()];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * 8);
+        return values;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("Enabled", enabled);
+        m.put("File", file);
+        m.put("RestoredSections", new ArrayList<>(restoredSections));
+        m.put("LastWatermark", lastWritten);
+        m.put("LastWriteMillis", lastWriteMillis);
+        m.put("LastWriteBytes", lastWriteBytes);
+        return m;
+    }
+}
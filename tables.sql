@@ -229,3 +229,204 @@ INSERT INTO "RoleIncludesPermission" ("RoleID", "PermissionID") VALUES
 (2, 6);
 
 GRANT USAGE, SELECT ON ALL SEQUENCES IN SCHEMA public TO sustc;
+
+
+-- ----------------------------------------------------------------------
+-- service 层实际使用的 snake_case 表上的增量结构
+-- (ALTER TABLE IF EXISTS：表不存在时跳过)
+-- ----------------------------------------------------------------------
+
+-- users.followers / users.following 与上面 "User" 的 Followers/Following 对应，
+-- 由 follow / deleteAccount / importData 维护，reconcileFollowCounters 定期对账
+ALTER TABLE IF EXISTS users ADD COLUMN IF NOT EXISTS followers INT NOT NULL DEFAULT 0 CHECK (followers >= 0);
+ALTER TABLE IF EXISTS users ADD COLUMN IF NOT EXISTS following INT NOT NULL DEFAULT 0 CHECK (following >= 0);
+
+-- deleteAccount 的异步清理任务，与软删除同事务写入，由 AccountCleanupWorker 领取执行
+CREATE TABLE IF NOT EXISTS account_cleanup_jobs (
+    user_id         BIGINT PRIMARY KEY,
+    enqueued_at     TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    locked_until    TIMESTAMP WITH TIME ZONE,
+    attempts        INT NOT NULL DEFAULT 0,
+    last_error      TEXT,
+    finished_at     TIMESTAMP WITH TIME ZONE
+);
+CREATE INDEX IF NOT EXISTS idx_account_cleanup_pending ON account_cleanup_jobs (enqueued_at) WHERE finished_at IS NULL;
+
+-- 清理按 follower_id / followee_id / 点赞人 分别走索引
+DO
+$do$
+BEGIN
+    IF to_regclass('user_follows') IS NOT NULL THEN
+        CREATE INDEX IF NOT EXISTS idx_user_follows_follower ON user_follows (follower_id);
+        CREATE INDEX IF NOT EXISTS idx_user_follows_followee ON user_follows (followee_id);
+    END IF;
+    IF to_regclass('review_likes') IS NOT NULL THEN
+        CREATE INDEX IF NOT EXISTS idx_review_likes_user ON review_likes (user_id);
+    END IF;
+END
+$do$;
+
+-- searchRecipes 的营养范围筛选 / 排序：每个字段一个 (字段, recipe_id) B-tree，单字段范围和升序排序走它，
+-- 多字段范围由规划器做 BitmapAnd；降序排序是 DESC NULLS LAST，反向扫描升序索引得到的是 NULLS FIRST，
+-- 所以另建 (字段 DESC NULLS LAST, recipe_id)
+ALTER TABLE IF EXISTS nutrition ADD COLUMN IF NOT EXISTS sodium REAL;
+DO
+$do$
+BEGIN
+    IF to_regclass('nutrition') IS NOT NULL THEN
+        CREATE INDEX IF NOT EXISTS idx_nutrition_calories ON nutrition (calories, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_fat ON nutrition (fat, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_sugar ON nutrition (sugar, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_protein ON nutrition (protein, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_carbohydrates ON nutrition (carbohydrates, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_sodium ON nutrition (sodium, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_calories_desc ON nutrition (calories DESC NULLS LAST, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_fat_desc ON nutrition (fat DESC NULLS LAST, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_sugar_desc ON nutrition (sugar DESC NULLS LAST, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_protein_desc ON nutrition (protein DESC NULLS LAST, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_carbohydrates_desc ON nutrition (carbohydrates DESC NULLS LAST, recipe_id);
+        CREATE INDEX IF NOT EXISTS idx_nutrition_sodium_desc ON nutrition (sodium DESC NULLS LAST, recipe_id);
+    END IF;
+END
+$do$;
+
+-- 分类维表：recipes.category_id 取代按自由文本 category 列筛选，
+-- searchRecipes 的分面计数按 category_id 分组；category 文本列保留用于展示
+CREATE TABLE IF NOT EXISTS categories (
+    id      SERIAL PRIMARY KEY,
+    name    VARCHAR(100) NOT NULL UNIQUE
+);
+ALTER TABLE IF EXISTS recipes ADD COLUMN IF NOT EXISTS category_id INT REFERENCES categories (id);
+DO
+$do$
+BEGIN
+    IF to_regclass('recipes') IS NOT NULL THEN
+        -- 回填已有数据
+        IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'recipes' AND column_name = 'category') THEN
+            INSERT INTO categories (name)
+                SELECT DISTINCT category FROM recipes WHERE category IS NOT NULL
+                ON CONFLICT (name) DO NOTHING;
+            UPDATE recipes r SET category_id = c.id
+                FROM categories c
+                WHERE r.category = c.name AND r.category_id IS NULL;
+        END IF;
+        CREATE INDEX IF NOT EXISTS idx_recipes_category_id ON recipes (category_id);
+    END IF;
+END
+$do$;
+
+-- 按天的分析汇总，由写路径在同一事务内增量 upsert，导入时整体写入；
+-- 按月统计在日汇总上 date_trunc 聚合，看板查询不再扫描原始表
+CREATE TABLE IF NOT EXISTS rollup_recipes_daily (
+    day             DATE NOT NULL,
+    category_id     INT NOT NULL DEFAULT 0,     -- 0 表示无分类
+    recipes         INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (day, category_id)
+);
+CREATE TABLE IF NOT EXISTS rollup_reviews_daily (
+    recipe_id       BIGINT NOT NULL,
+    day             DATE NOT NULL,
+    reviews         INT NOT NULL DEFAULT 0,
+    rating_sum      BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (recipe_id, day)
+);
+CREATE TABLE IF NOT EXISTS rollup_follows_daily (
+    user_id         BIGINT NOT NULL,            -- 被关注者
+    day             DATE NOT NULL,
+    gained          INT NOT NULL DEFAULT 0,
+    lost            INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, day)
+);
+
+-- reviews 按 recipe_id、review_likes 按 review_id 哈希分区 (各 16 个分区)：
+-- listByRecipe / 评分刷新 / 删除食谱按 recipe_id 只访问一个分区，点赞读写按 review_id 只访问一个分区，
+-- VACUUM 和索引维护按分区进行。已有的非分区表在这里迁移：改名 -> 建分区表 -> 拷贝数据 -> 删旧表 -> 建约束和索引。
+-- 分区表的唯一约束必须包含分区键，因此 reviews 主键变为 (id, recipe_id)，id 的唯一性由序列 (含批量写入的 nextval 预分配)
+-- 和导入前的 ImportValidator 去重保证 (导入后序列推到导入的最大 id 之后)。LIKE 不复制外键：旧表上指向其他表的外键 (reviews -> recipes / users、
+-- review_likes -> users) 在删旧表前按 pg_get_constraintdef 原样记下，数据就位后加回新表；
+-- review_likes -> reviews 的外键在分区后无法保留，引用完整性由 deleteReview / deleteRecipe 的级联删除保证。
+-- 删旧表不带 CASCADE：若还有别的表引用旧 reviews，迁移直接失败回滚，而不是悄悄删掉那些外键。
+DO
+$do$
+DECLARE
+    i   INT;
+    seq TEXT;
+    fk  RECORD;
+    fks TEXT[] := '{}';
+    ddl TEXT;
+BEGIN
+    IF to_regclass('reviews') IS NULL OR to_regclass('review_likes') IS NULL
+        OR (SELECT relkind FROM pg_class WHERE oid = to_regclass('reviews')) = 'p' THEN
+        RETURN;
+    END IF;
+
+    ALTER TABLE review_likes RENAME TO review_likes_unpartitioned;
+    ALTER TABLE reviews RENAME TO reviews_unpartitioned;
+
+    CREATE TABLE reviews (LIKE reviews_unpartitioned INCLUDING DEFAULTS INCLUDING CONSTRAINTS) PARTITION BY HASH (recipe_id);
+    CREATE TABLE review_likes (LIKE review_likes_unpartitioned INCLUDING DEFAULTS INCLUDING CONSTRAINTS) PARTITION BY HASH (review_id);
+    FOR i IN 0..15 LOOP
+        EXECUTE format('CREATE TABLE reviews_p%s PARTITION OF reviews FOR VALUES WITH (MODULUS 16, REMAINDER %s)', i, i);
+        EXECUTE format('CREATE TABLE review_likes_p%s PARTITION OF review_likes FOR VALUES WITH (MODULUS 16, REMAINDER %s)', i, i);
+    END LOOP;
+
+    INSERT INTO reviews SELECT * FROM reviews_unpartitioned;
+    INSERT INTO review_likes SELECT * FROM review_likes_unpartitioned;
+
+    -- id 的序列改挂到新表上，避免随旧表一起删除
+    seq := pg_get_serial_sequence('reviews_unpartitioned', 'id');
+    IF seq IS NOT NULL THEN
+        EXECUTE format('ALTER SEQUENCE %s OWNED BY reviews.id', seq);
+    END IF;
+
+    -- 记下旧表指向其他表的外键 (指向旧 reviews 自身的除外)，删表后加回新表
+    FOR fk IN
+        SELECT c.conname, pg_get_constraintdef(c.oid) AS def,
+               CASE WHEN c.conrelid = 'reviews_unpartitioned'::regclass THEN 'reviews' ELSE 'review_likes' END AS tbl
+        FROM pg_constraint c
+        WHERE c.contype = 'f'
+          AND c.conrelid IN ('reviews_unpartitioned'::regclass, 'review_likes_unpartitioned'::regclass)
+          AND c.confrelid <> 'reviews_unpartitioned'::regclass
+    LOOP
+        fks := fks || format('ALTER TABLE %I ADD CONSTRAINT %I %s', fk.tbl, fk.conname, fk.def);
+    END LOOP;
+
+    DROP TABLE review_likes_unpartitioned;
+    DROP TABLE reviews_unpartitioned;
+
+    -- 数据就位后再建约束和索引
+    ALTER TABLE reviews ADD PRIMARY KEY (id, recipe_id);
+    ALTER TABLE review_likes ADD PRIMARY KEY (review_id, user_id);
+    CREATE INDEX IF NOT EXISTS idx_reviews_recipe_time ON reviews (recipe_id, create_time DESC);
+    CREATE INDEX IF NOT EXISTS idx_reviews_id ON reviews (id);
+    CREATE INDEX IF NOT EXISTS idx_review_likes_user ON review_likes (user_id);
+    FOREACH ddl IN ARRAY fks LOOP
+        EXECUTE ddl;
+    END LOOP;
+END
+$do$;
+
+-- 多节点变更事件 (outbox)：写路径与业务数据同事务写入，各节点 ChangeFeed 按事务号拉取其他节点的事件，
+-- 刷新本节点的内存结构；超过保留期的事件定期删除
+CREATE TABLE IF NOT EXISTS change_events (
+    id              BIGSERIAL PRIMARY KEY,
+    node_id         VARCHAR(64) NOT NULL,
+    kind            VARCHAR(32) NOT NULL,
+    entity_id       BIGINT NOT NULL,
+    ref_ids         BIGINT[],
+    created_at      TIMESTAMP NOT NULL DEFAULT NOW()
+);
+CREATE INDEX IF NOT EXISTS idx_change_events_created_at ON change_events (created_at);
+-- 写入事件的事务号，消费端按它而不是 id 推进 (id 的可见顺序与分配顺序不一致)
+ALTER TABLE change_events ADD COLUMN IF NOT EXISTS tx XID8 NOT NULL DEFAULT pg_current_xact_id();
+CREATE INDEX IF NOT EXISTS idx_change_events_tx ON change_events (tx, id);
+
+-- 密码改为加盐哈希 (pbkdf2$迭代次数$盐$哈希)，放宽列类型；导入的明文在用户登录成功时升级
+DO
+$do$
+BEGIN
+    IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'users' AND column_name = 'password') THEN
+        ALTER TABLE users ALTER COLUMN password TYPE TEXT;
+    END IF;
+END
+$do$;